@@ -4,21 +4,21 @@ import java.awt.BorderLayout;
 import java.awt.Container;
 import java.awt.event.ActionEvent;
 import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.ConcurrentModificationException;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.Vector;
 
+import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MidiDevice;
 import javax.sound.midi.MidiDevice.Info;
 import javax.sound.midi.MidiMessage;
 import javax.sound.midi.MidiSystem;
 import javax.sound.midi.MidiUnavailableException;
 import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequence;
 import javax.sound.midi.ShortMessage;
 import javax.sound.midi.Transmitter;
 import javax.swing.Action;
@@ -30,7 +30,10 @@ import javax.swing.JPanel;
 import replicatorg.app.Base;
 import replicatorg.machine.MachineInterface;
 import replicatorg.machine.MachineLoader;
-import replicatorg.model.StringListSource;
+import replicatorg.model.CompiledJob;
+import replicatorg.model.GCodeSource;
+import replicatorg.model.MappedFileSource;
+import replicatorg.model.StreamSource;
 
 /**
  * Play CNC Machine with MIDI
@@ -41,168 +44,21 @@ public class MidibotMain implements Receiver {
 	/**
 	 * fields about MIDI
 	 */
-	private static final int MAX_NOTES = 3;
-	private static final int AUTO_STOP_MAX_COUNT = 5;
-	Map<Integer, Integer> autoStopCounter = new HashMap<Integer, Integer>();
 	Transmitter transmitter = null;
-	Set<Integer> noteSet = new HashSet<Integer>();
+	final NoteTable noteTable = new NoteTable();
 	
 	/**
 	 * fields about Machine
 	 */
-	MachineInterface machine = null;
-	double currentX, currentY, currentZ;
-	double minX, minY, minZ;
-	double maxX, maxY, maxZ;
-	boolean addX, addY, addZ;
+	VoiceAllocator allocator = null;
 
-	/**
-	 * compose vector length from x,y,z movement
-	 * 
-	 * @param x
-	 * @param y
-	 * @param z
-	 * @return
-	 */
-	private double calculateVectorLength(double x, double y, double z) {
-		// 3D vector length
-		return Math.sqrt(Math.pow(x, 2) + Math.pow(y, 2) + Math.pow(z, 2));
-	}
-	
-	/**
-	 * Calculates distance for MIDI note number with 1 seconds.
-	 * 
-	 * @param note MIDI note number
-	 * @return
-	 */
-	private double midiNoteToDistance(int note) {
-		if (note < 0) {
-			return 0;
-		}
-		// distance for 1 second
-		return 10.0 * Math.pow(2.0, (note - 69) / 12.0);
-	}
-	
-	/**
-	 * Calculates distance per 60 seconds.
-	 * 
-	 * @param distancePer1Second
-	 * @return
-	 */
-	private double distanceToFeedrate(double distancePer1Second) {
-		return distancePer1Second * 60.0;
-	}
-
-	/**
-	 * Generate G-Code string from MIDI note numbers, and length.
-	 * 
-	 * @param note1 MIDI note number (ignore when note1 < 0)
-	 * @param note2 MIDI note number (ignore when note2 < 0)
-	 * @param note3 MIDI note number (ignore when note3 < 0)
-	 * @param length play length in second.
-	 * @return G-Code string
-	 */
-	public String getGcodeStringFromNoteNumber(int note1, int note2, int note3, double length) {
-		double x = midiNoteToDistance(note1);
-		double y = midiNoteToDistance(note2);
-		double z = midiNoteToDistance(note3);
-
-		double fx = distanceToFeedrate(x);
-		double fy = distanceToFeedrate(y);
-		double fz = distanceToFeedrate(z);
-
-		double feedVector = calculateVectorLength(fx, fy, fz);
-
-		x *= length;
-		y *= length;
-		z *= length;
-
-		changeAxisValue(x, y, z);
-		if (!addX) {
-			x = -x;
-		}
-		if (!addY) {
-			y = -y;
-		}
-		if (!addZ) {
-			z = -z;
-		}
-
-		java.text.DecimalFormat decimalFormat = new java.text.DecimalFormat("#.0000000000");
-		return "G1 X" + decimalFormat.format(x) + " Y" + decimalFormat.format(y) + " Z" + decimalFormat.format(z) + " F" + decimalFormat.format(feedVector);
-	}
-
-	/**
-	 * Select axis direction, with axis movement value.
-	 * 
-	 * @param x
-	 * @param y
-	 * @param z
-	 */
-	private void changeAxisValue(double x, double y, double z) {
-		// boundary condition
-		if (addX && currentX + x > maxX) {
-			addX = false;
-		} else if (!addX && currentX - x < minX) {
-			addX = true;
-		}
-		if (addY && currentY + y > maxY) {
-			addY = false;
-		} else if (!addY && currentY - y < minY) {
-			addY = true;
-		}
-		if (addZ && currentZ + z > maxZ) {
-			addZ = false;
-		} else if (!addZ && currentZ - x < minZ) {
-			addZ = true;
-		}
-
-		if (addX) {
-			currentX += x;
-		} else {
-			currentX -= x;
-		}
-		if (addY) {
-			currentY += y;
-		} else {
-			currentY -= y;
-		}
-		if (addZ) {
-			currentZ += z;
-		} else {
-			currentZ -= z;
-		}
-	}
-	
 	/**
 	 * reset the Machine and parameters
 	 */
 	public void resetMachine() {
-		if (machine != null) {
-			// Move to home position, and center all axes.
-			Vector<String> codes = new Vector<String>();
-			codes.add("G21 (set units to mm)");
-			codes.add("G90 (set positioning to absolute)");
-			codes.add("G162 Z F500 (home Z axis maximum)");
-			codes.add("G161 X Y F2500 (home XY axes minimum)");
-			codes.add("M132 X Y Z A B (Recall stored home offsets for XYZAB axis)");
-			codes.add("G1 X0 Y0 Z50 F1000");
-
-			machine.buildDirect(new StringListSource(codes));
+		if (allocator != null) {
+			allocator.resetMachines();
 		}
-
-		minX = -5.0;
-		maxX = 5.0;
-		
-		minY = -5.0;
-		maxY = 5.0;
-		
-		minZ = 0.0;
-		maxZ = 10.0;
-
-		currentX = 0.0;
-		currentY = 0.0;
-		currentZ = 0.0;
 	}
 	
 	/**
@@ -230,11 +86,8 @@ public class MidibotMain implements Receiver {
 				Info selectedItem = (Info) jComboBox.getSelectedItem();
 				selectTransmitter(infoMap.get(selectedItem));
 				
-				machine = getMachine();
-				resetMachine();
-				
-				MachineThread machineThread = new MachineThread();
-				machineThread.start();
+				allocator = new VoiceAllocator(getMachines(), noteTable);
+				allocator.start();
 			}
 		});
 		startButton.setText("Choose & start to play.");
@@ -269,10 +122,172 @@ public class MidibotMain implements Receiver {
 
 	public static void main(String[] args) {
 		MidibotMain midibot = new MidibotMain();
+		if (args.length >= 3 && args[0].equals("--compile")) {
+			// compile the G-code job, to build it again later without parsing
+			midibot.compileFile(new File(args[1]), new File(args[2]));
+			return;
+		}
+		if (args.length > 0 && (args[0].equals("-") || args[0].equals("--pipe") || args[0].equals("--listen"))) {
+			// build G-code as it arrives from another program
+			midibot.buildStream(args);
+			return;
+		}
+		if (args.length > 0) {
+			File file = new File(args[0]);
+			if (file.getName().toLowerCase().endsWith(CompiledJob.EXTENSION)) {
+				midibot.buildCompiledFile(file);
+				return;
+			}
+			if (isGCodeFile(file)) {
+				// build the G-code job instead of playing music
+				midibot.buildFile(file);
+				return;
+			}
+			// play the Standard MIDI File instead of live input
+			midibot.playFile(file);
+			return;
+		}
 		Map<Info, Transmitter> infoMap = midibot.listUpTransmitterInfo();
 		midibot.setUpSwingDialog(infoMap);
 	}
 	
+	/**
+	 * play the Standard MIDI File with the machines
+	 * 
+	 * @param file
+	 */
+	public void playFile(File file) {
+		Sequence sequence;
+		try {
+			sequence = MidiSystem.getSequence(file);
+		} catch (InvalidMidiDataException e) {
+			System.err.println(e.getMessage() + ":" + file);
+			return;
+		} catch (IOException e) {
+			System.err.println(e.getMessage() + ":" + file);
+			return;
+		}
+		
+		SequencePlayer player = new SequencePlayer(getMachines(), sequence);
+		System.out.println("compiled: " + player.getCommandCount() + " commands");
+		player.start();
+	}
+	
+	private static boolean isGCodeFile(File file) {
+		String name = file.getName().toLowerCase();
+		return name.endsWith(".gcode") || name.endsWith(".ngc") || name.endsWith(".gc");
+	}
+	
+	/**
+	 * build the G-code file on the first machine. The file is memory-mapped,
+	 * so even a very large job starts at once.
+	 * 
+	 * @param file
+	 */
+	public void buildFile(File file) {
+		GCodeSource source;
+		try {
+			source = new MappedFileSource(file);
+		} catch (IOException e) {
+			System.err.println(e.getMessage() + ":" + file);
+			return;
+		}
+		build(source);
+	}
+	
+	/**
+	 * build G-code of unknown length on the first machine, read from stdin ("-"),
+	 * a named pipe ("--pipe path") or the first connection to a local port ("--listen port").
+	 * 
+	 * @param args
+	 */
+	public void buildStream(String[] args) {
+		StreamSource source;
+		try {
+			if (args[0].equals("-")) {
+				source = StreamSource.fromStdin();
+			} else if (args.length < 2) {
+				System.err.println(args[0] + " needs an argument");
+				return;
+			} else if (args[0].equals("--pipe")) {
+				source = StreamSource.fromPipe(new File(args[1]));
+			} else {
+				source = StreamSource.listen(Integer.parseInt(args[1]));
+			}
+		} catch (IOException e) {
+			System.err.println(e.getMessage() + ":" + args[1]);
+			return;
+		} catch (NumberFormatException e) {
+			System.err.println("Not a port number:" + args[1]);
+			return;
+		}
+		build(source);
+	}
+	
+	/**
+	 * compile the G-code file for the machine last used, without connecting to it.
+	 * 
+	 * @param file G-code file
+	 * @param output compiled job file
+	 */
+	public void compileFile(File file, File output) {
+		MachineLoader machineLoader = new MachineLoader();
+		if (!machineLoader.load(Base.preferences.get("machine.name", null))) {
+			throw new IllegalStateException("Couldn't load machine.");
+		}
+		try {
+			CompiledJob job = machineLoader.getMachine().compile(new MappedFileSource(file), output);
+			System.out.println("compiled: " + job.getLineCount() + " lines");
+		} catch (IOException e) {
+			System.err.println(e.getMessage() + ":" + file);
+		} finally {
+			machineLoader.unload();
+			machineLoader.dispose();
+		}
+	}
+	
+	/**
+	 * build the compiled job on the first machine, once it is connected.
+	 * 
+	 * @param file
+	 */
+	public void buildCompiledFile(File file) {
+		CompiledJob job;
+		try {
+			job = new CompiledJob(file);
+		} catch (IOException e) {
+			System.err.println(e.getMessage() + ":" + file);
+			return;
+		}
+		waitUntilReady(getMachines().get(0)).buildCompiled(job);
+	}
+	
+	/**
+	 * wait until the machine is connected and ready to print.
+	 * 
+	 * @param machine
+	 * @return the machine
+	 */
+	private MachineInterface waitUntilReady(MachineInterface machine) {
+		try {
+			while (!machine.getMachineState().canPrint()) {
+				Thread.sleep(100);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return machine;
+	}
+	
+	/**
+	 * build the job on the first machine, once it is connected.
+	 * 
+	 * @param source
+	 */
+	private void build(GCodeSource source) {
+		waitUntilReady(getMachines().get(0)).buildDirect(source);
+	}
+	
 	/**
 	 * list up MIDI Transmitter information.
 	 * 
@@ -310,100 +325,40 @@ public class MidibotMain implements Receiver {
 	}
 	
 	/**
-	 * load the machine last used
+	 * load the machine last used, once for each serial port to play with.
+	 * The ports are listed in midibot.serial_ports separated by commas, or the port last used.
 	 * 
 	 * @return
 	 */
-	public MachineInterface getMachine() {
-		MachineLoader machineLoader = new MachineLoader();
+	public List<MachineInterface> getMachines() {
 		String name = Base.preferences.get("machine.name", null);
 		System.out.println("machine.name: " + name);
-		boolean loaded = machineLoader.load(name);
-		System.out.println("loaded: " + loaded);
-		if (!loaded) {
-			throw new IllegalStateException("Couldn't load machine.");
-		}
 		
-		String targetPort = Base.preferences.get("serial.last_selected", null);
-		System.out.println("targetPort: " + targetPort);
-		if (targetPort == null) {
+		String targetPorts = Base.preferences.get("midibot.serial_ports", Base.preferences.get("serial.last_selected", null));
+		System.out.println("targetPorts: " + targetPorts);
+		if (targetPorts == null) {
 			throw new NullPointerException("Couldn't find target port.");
 		}
-		machineLoader.connect(targetPort);
-		return machineLoader.getMachine();
-	}
-	
-	/**
-	 * Machine controlling thread
-	 * 
-	 * @author K.Shoji
-	 */
-	class MachineThread extends Thread {
-		@Override
-		public void run() {
-			super.run();
-
-			Vector<String> codes = new Vector<String>();
-			while (true) {
-				try {
-					sleep(100);
-
-					// add notes
-					ArrayList<Integer> notes = new ArrayList<Integer>();
-					synchronized (noteSet) {
-						for (Integer note : noteSet) {
-							Integer counter = autoStopCounter.get(note);
-							if (counter == null) {
-								autoStopCounter.put(note, 1);
-								counter = 1;
-							} else {
-								autoStopCounter.put(note, counter + 1);
-							}
-							if (counter > AUTO_STOP_MAX_COUNT) {
-								continue;
-							}
-							notes.add(note);
-						}
-
-						// auto stop notes
-						List<Integer> removeList = new ArrayList<Integer>();
-						for (Integer note : noteSet) {
-							Integer counter = autoStopCounter.get(note);
-							if (counter == null) {
-								continue;
-							}
-							if (counter > AUTO_STOP_MAX_COUNT) {
-								removeList.add(note);
-							}
-						}
-						for (Integer integer : removeList) {
-							noteSet.remove(integer);
-							autoStopCounter.put(integer, 0);
-						}
-					}
-
-					if (notes.size() < 1) {
-						// do nothing...
-						continue;
-					}
-
-					// play sound 100milliseconds
-					String gcodeString = getGcodeStringFromNoteNumber(notes.get(0), notes.size() > 1 ? notes.get(1) : -1, notes.size() > 2 ? notes.get(2) : -1, 0.1);
-
-					System.out.println(gcodeString);
-					codes.clear();
-					codes.add(gcodeString);
-					machine.buildDirect(new StringListSource(codes));
-
-				} catch (ConcurrentModificationException e) {
-					e.printStackTrace();
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-					machine.disconnect();
-					break;
-				}
+		
+		List<MachineInterface> machines = new ArrayList<MachineInterface>();
+		for (String targetPort : targetPorts.split(",")) {
+			targetPort = targetPort.trim();
+			if (targetPort.length() == 0) {
+				continue;
 			}
+			MachineLoader machineLoader = new MachineLoader();
+			boolean loaded = machineLoader.load(name);
+			System.out.println("loaded: " + loaded);
+			if (!loaded) {
+				throw new IllegalStateException("Couldn't load machine.");
+			}
+			machineLoader.connect(targetPort);
+			machines.add(machineLoader.getMachine());
+		}
+		if (machines.isEmpty()) {
+			throw new NullPointerException("Couldn't find target port.");
 		}
+		return machines;
 	}
 	
 	/**
@@ -449,6 +404,9 @@ public class MidibotMain implements Receiver {
 	 */
 	@Override
 	public void send(MidiMessage message, long timeStamp) {
+		if (allocator == null) {
+			return;
+		}
 		if (message instanceof ShortMessage) {
 			ShortMessage shortMessage = ((ShortMessage) message);
 
@@ -457,25 +415,16 @@ public class MidibotMain implements Receiver {
 			switch (shortMessage.getCommand()) {
 			case ShortMessage.NOTE_ON:
 				if (shortMessage.getData2() != 0) {
-					synchronized (noteSet) {
-							if (!noteSet.contains(data1) && noteSet.size() < MAX_NOTES) {
-							noteSet.add(data1);
-							System.out.println("MIDI note on :" + data1);
-						}
-					}
+					allocator.noteOn(data1, shortMessage.getData2(), timeStamp);
 				} else {
-					synchronized (noteSet) {
-						noteSet.remove(data1);
-					}
-					System.out.println("MIDI note off:" + data1);
+					allocator.noteOff(data1, timeStamp);
 				}
 				break;
 			case ShortMessage.NOTE_OFF:
-				synchronized (noteSet) {
-					noteSet.remove(data1);
-					autoStopCounter.put(data1, 0);
-				}
-				System.out.println("MIDI note off:" + data1);
+				allocator.noteOff(data1, timeStamp);
+				break;
+			case ShortMessage.PITCH_BEND:
+				allocator.pitchBend((shortMessage.getData2() << 7) | data1, timeStamp);
 				break;
 			}
 		}
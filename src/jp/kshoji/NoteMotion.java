@@ -0,0 +1,144 @@
+package jp.kshoji;
+
+import replicatorg.util.Point5d;
+
+/**
+ * Converts MIDI notes into relative machine motion. Each of X, Y and Z plays
+ * one note, moving back and forth inside the build volume.
+ *
+ * @author kshoji
+ */
+public class NoteMotion {
+	/** the position notes are played around, in mm */
+	public static final double RESET_X = 0;
+	public static final double RESET_Y = 0;
+	public static final double RESET_Z = 50;
+
+	/**
+	 * gcode to move to home position, and then to the reset position.
+	 * notes are then played as relative moves.
+	 */
+	public static final String[] RESET_CODES = {
+		"G21 (set units to mm)",
+		"G90 (set positioning to absolute)",
+		"G162 Z F500 (home Z axis maximum)",
+		"G161 X Y F2500 (home XY axes minimum)",
+		"M132 X Y Z A B (Recall stored home offsets for XYZAB axis)",
+		"G1 X" + RESET_X + " Y" + RESET_Y + " Z" + RESET_Z + " F1000",
+		"G91 (set positioning to relative, notes are played as relative moves)",
+	};
+
+	final PitchTable pitchTable;
+	final TravelPlanner planner;
+
+	// axis speeds of the last move, in mm/s
+	private final double[] speed = new double[3];
+	private final int[] notes = new int[3];
+	private int lastNote1 = -1, lastNote2 = -1, lastNote3 = -1;
+	private int lastBend = PitchTable.CENTER_BEND;
+	private double feedrate;
+	// true if the last move started a chord
+	private boolean lastChordStart = false;
+
+	/**
+	 * @param pitchTable the pitch table of the machine to play with
+	 * @param planner the travel planner of the machine to play with
+	 */
+	public NoteMotion(PitchTable pitchTable, TravelPlanner planner) {
+		this.pitchTable = pitchTable;
+		this.planner = planner;
+	}
+
+	/**
+	 * compose vector length from x,y,z movement
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return
+	 */
+	private double calculateVectorLength(double x, double y, double z) {
+		// 3D vector length
+		return Math.sqrt(x * x + y * y + z * z);
+	}
+
+	/**
+	 * Calculates distance per 60 seconds.
+	 *
+	 * @param distancePer1Second
+	 * @return
+	 */
+	private double distanceToFeedrate(double distancePer1Second) {
+		return distancePer1Second * 60.0;
+	}
+
+	/**
+	 * Calculate the next machine motion for MIDI note numbers. The motion may
+	 * be shorter than requested, when an axis has to turn around.
+	 *
+	 * @param note1 MIDI note number (ignore when note1 < 0)
+	 * @param note2 MIDI note number (ignore when note2 < 0)
+	 * @param note3 MIDI note number (ignore when note3 < 0)
+	 * @param bend 14-bit pitch bend value
+	 * @param length the longest play length wanted, in seconds
+	 * @param remaining how long the notes will still be held, in seconds, or Double.POSITIVE_INFINITY if unknown
+	 * @param delta filled with the relative move
+	 * @return the play length of the motion, in seconds
+	 */
+	public double move(int note1, int note2, int note3, int bend, double length, double remaining, Point5d delta) {
+		boolean chordStart = note1 != lastNote1 || note2 != lastNote2 || note3 != lastNote3 || bend != lastBend;
+		if (chordStart) {
+			// distance for 1 second
+			notes[0] = note1;
+			notes[1] = note2;
+			notes[2] = note3;
+			pitchTable.getChordSpeeds(notes, bend, speed);
+			feedrate = calculateVectorLength(distanceToFeedrate(speed[0]), distanceToFeedrate(speed[1]), distanceToFeedrate(speed[2]));
+
+			lastNote1 = note1;
+			lastNote2 = note2;
+			lastNote3 = note3;
+			lastBend = bend;
+		}
+		lastChordStart = chordStart;
+		return planner.plan(speed, length, remaining, chordStart, delta);
+	}
+
+	/**
+	 * @return feedrate of the last motion, in mm/min
+	 */
+	public double getFeedrate() {
+		return feedrate;
+	}
+
+	/**
+	 * Forget the end of the motion already calculated, because it was cut off.
+	 * The next motion is planned as the start of a new chord.
+	 *
+	 * @param seconds the play length cut off
+	 */
+	public void cut(double seconds) {
+		planner.rewind(seconds);
+		lastNote1 = lastNote2 = lastNote3 = -1;
+	}
+
+	/**
+	 * Forget the last motion, because it couldn't be queued on the machine.
+	 */
+	public void undo() {
+		planner.undo();
+		if (lastChordStart) {
+			// plan the chord's start again
+			lastNote1 = lastNote2 = lastNote3 = -1;
+		}
+	}
+
+	/**
+	 * reset the parameters, after the machine moved to the reset position
+	 */
+	public void reset() {
+		planner.reset();
+		lastNote1 = lastNote2 = lastNote3 = -1;
+		lastBend = PitchTable.CENTER_BEND;
+	}
+}
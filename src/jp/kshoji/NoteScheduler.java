@@ -0,0 +1,293 @@
+package jp.kshoji;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import replicatorg.app.Base;
+import replicatorg.machine.MachineInterface;
+import replicatorg.machine.builder.Streaming;
+import replicatorg.util.Point5d;
+
+/**
+ * Plays the voices assigned to one machine, one voice per axis.
+ *
+ * The thread sleeps until a MIDI event arrives or the motion queued on the
+ * machine is about to run out, so a note-on is written to the machine as soon
+ * as it is received. Note timing comes from the MIDI message time stamps.
+ * A chord is queued as one segment per axis reversal, lasting until the chord
+ * would stop automatically; when the chord changes earlier, the rest of the
+ * queued motion is flushed from the machine and the new chord queued instead.
+ * A note-off therefore stops sounding as soon as the flush reaches the
+ * machine; the position the machine stopped at is read back afterwards and
+ * used to correct the travel planner. Where the stream can't be flushed (old
+ * firmware without a soft stop, or while the machine is still resetting),
+ * the queued motion runs out and the new chord follows it.
+ *
+ * @author kshoji
+ */
+public class NoteScheduler extends Thread {
+	/**
+	 * fields about MIDI
+	 */
+	// number of voices played by one machine: X, Y and Z
+	public static final int VOICES = 3;
+	// notes are stopped automatically after this length, in microseconds
+	public static final long AUTO_STOP_MICROS = 500000;
+	private static final long DEFAULT_LOOKAHEAD_MILLIS = 20;
+
+	// written by the MIDI receiver, only read here
+	private final NoteTable noteTable;
+	private final NoteTable.Snapshot snapshot = new NoteTable.Snapshot();
+	// MIDI note number assigned to each axis by the VoiceAllocator, -1 for none
+	private final AtomicIntegerArray voices = new AtomicIntegerArray(VOICES);
+
+	/**
+	 * fields about Machine
+	 */
+	final MachineInterface machine;
+	volatile Streaming stream = null;
+	final NoteMotion motion;
+
+	// at least this much motion is kept queued on the machine while notes are held, in microseconds
+	private final long lookaheadMicros;
+	// time when the motion queued so far will have been played, in microseconds
+	private long queuedUntil = 0;
+	// true while notes can't be queued, so that it is only logged once
+	private boolean streamFull = false;
+	// set by resetMachine(), the reset itself is done on this thread
+	private final AtomicBoolean resetRequested = new AtomicBoolean(false);
+
+	/**
+	 * the position the machine stopped at after a flush, null if it couldn't be read back
+	 */
+	private static class Reconciled {
+		final long flush;
+		final Point5d position;
+
+		Reconciled(long flush, Point5d position) {
+			this.flush = flush;
+			this.position = position;
+		}
+	}
+
+	// the last flush, and the planned position at the time
+	private long lastFlush = -1;
+	private final double[] flushEstimate = new double[VOICES];
+	private final double[] flushError = new double[VOICES];
+	// set by the machine thread after a flush
+	private final AtomicReference<Reconciled> reconciled = new AtomicReference<Reconciled>();
+
+	/**
+	 * @param machine the machine to play with
+	 * @param noteTable the notes held on the MIDI receiver
+	 */
+	public NoteScheduler(MachineInterface machine, NoteTable noteTable) {
+		super("Note Scheduler");
+		this.machine = machine;
+		this.noteTable = noteTable;
+		motion = new NoteMotion(PitchTable.forModel(machine.getModel()), new TravelPlanner(machine.getModel()));
+		for (int axis = 0; axis < VOICES; axis++) {
+			voices.set(axis, -1);
+		}
+		lookaheadMicros = Base.preferences.getLong("midibot.lookahead_ms", DEFAULT_LOOKAHEAD_MILLIS) * 1000;
+	}
+
+	/**
+	 * Assign a note to one axis, called by the VoiceAllocator.
+	 *
+	 * @param axis 0 to VOICES - 1
+	 * @param note MIDI note number, or -1 to silence the axis
+	 */
+	public void assign(int axis, int note) {
+		voices.set(axis, note);
+		wake();
+	}
+
+	/**
+	 * Wake the scheduler up, called by the MIDI receiver after changing the note table.
+	 */
+	public void wake() {
+		LockSupport.unpark(this);
+	}
+
+	/**
+	 * Collect the notes to play at the specified time. Notes held longer than
+	 * AUTO_STOP_MICROS are ignored.
+	 *
+	 * @param time
+	 * @param notes filled with MIDI note numbers, -1 for silent axes
+	 * @return the time when one of the notes will stop automatically, or Long.MAX_VALUE
+	 */
+	private long collectNotes(long time, int[] notes) {
+		noteTable.snapshot(snapshot);
+
+		long nextStop = Long.MAX_VALUE;
+		for (int axis = 0; axis < VOICES; axis++) {
+			int note = voices.get(axis);
+			notes[axis] = -1;
+			if (note < 0 || !snapshot.isActive(note)) {
+				continue;
+			}
+			long stop = snapshot.getOnset(note) + AUTO_STOP_MICROS;
+			if (stop <= time) {
+				// auto stop notes
+				continue;
+			}
+			notes[axis] = note;
+			nextStop = Math.min(nextStop, stop);
+		}
+		return nextStop;
+	}
+
+	@Override
+	public void run() {
+		try {
+			// wait for the connection, then keep one streaming build open while playing
+			while (!machine.getMachineState().canPrint()) {
+				sleep(100);
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			machine.disconnect();
+			return;
+		}
+		stream = machine.buildStreaming(Streaming.DEFAULT_CAPACITY);
+		stream.setFlushListener(new Streaming.FlushListener() {
+			@Override
+			public void flushed(long flush, Point5d position) {
+				reconciled.set(new Reconciled(flush, position));
+				wake();
+			}
+		});
+		reset();
+
+		int[] notes = new int[VOICES];
+		int[] playing = { -1, -1, -1 };
+		int playingBend = PitchTable.CENTER_BEND;
+		while (!isInterrupted()) {
+			long now = NoteTable.nowMicros();
+			if (queuedUntil < now) {
+				// the machine has played everything
+				queuedUntil = now;
+			}
+
+			if (resetRequested.getAndSet(false)) {
+				reset();
+			}
+
+			Reconciled stopped = reconciled.getAndSet(null);
+			if (stopped != null && stopped.flush == lastFlush && stopped.position != null) {
+				// the planner assumed the machine stopped where the cut was planned
+				flushError[0] = stopped.position.x() - NoteMotion.RESET_X - flushEstimate[0];
+				flushError[1] = stopped.position.y() - NoteMotion.RESET_Y - flushEstimate[1];
+				flushError[2] = stopped.position.z() - NoteMotion.RESET_Z - flushEstimate[2];
+				motion.planner.shift(flushError);
+			}
+
+			long nextStop = collectNotes(now, notes);
+			int bend = snapshot.getPitchBend();
+			boolean changed = notes[0] != playing[0] || notes[1] != playing[1] || notes[2] != playing[2] || bend != playingBend;
+
+			if (changed && queuedUntil > now) {
+				// cut off the motion of the last chord, then queue only the notes still held
+				long flush = stream.flush();
+				if (flush >= 0) {
+					motion.cut((queuedUntil - now) / 1000000.0);
+					motion.planner.getPosition(flushEstimate);
+					lastFlush = flush;
+					queuedUntil = now;
+				}
+			}
+			System.arraycopy(notes, 0, playing, 0, VOICES);
+			playingBend = bend;
+
+			long wakeUp = Long.MAX_VALUE;
+			if (notes[0] >= 0 || notes[1] >= 0 || notes[2] >= 0) {
+				// queue the chord until it stops, one segment per axis reversal.
+				boolean full = false;
+				while (queuedUntil < nextStop && queuedUntil - now < lookaheadMicros) {
+					long played = playNotes(notes[0], notes[1], notes[2], bend, nextStop - queuedUntil, nextStop - queuedUntil);
+					if (played <= 0) {
+						if (!streamFull) {
+							Base.logger.warning("Stream is full or closed, dropping notes: " + notes[0] + ", " + notes[1] + ", " + notes[2]);
+							streamFull = true;
+						}
+						full = true;
+						break;
+					}
+					if (streamFull) {
+						Base.logger.info("Stream has room again, playing notes");
+						streamFull = false;
+					}
+					queuedUntil += played;
+				}
+				// wake up to queue more after a reversal, or when the chord stops automatically.
+				if (full) {
+					wakeUp = now + lookaheadMicros / 2;
+				} else if (queuedUntil < nextStop) {
+					wakeUp = queuedUntil - lookaheadMicros / 2;
+				} else {
+					wakeUp = nextStop;
+				}
+			}
+
+			if (wakeUp > now) {
+				LockSupport.parkNanos(this, TimeUnit.MICROSECONDS.toNanos(Math.min(wakeUp - now, Integer.MAX_VALUE)));
+			}
+		}
+
+		stream.close();
+		machine.disconnect();
+	}
+
+	/**
+	 * Queue the machine motion for MIDI note numbers, and length.
+	 *
+	 * @param note1 MIDI note number (ignore when note1 < 0)
+	 * @param note2 MIDI note number (ignore when note2 < 0)
+	 * @param note3 MIDI note number (ignore when note3 < 0)
+	 * @param bend 14-bit pitch bend value
+	 * @param length the longest play length wanted, in microseconds
+	 * @param remaining how long the notes will still be held at most, in microseconds
+	 * @return the play length queued in microseconds, 0 if the motion couldn't be queued
+	 */
+	public long playNotes(int note1, int note2, int note3, int bend, long length, long remaining) {
+		Point5d delta = new Point5d();
+		double played = motion.move(note1, note2, note3, bend, length / 1000000.0, remaining / 1000000.0, delta);
+		if (!machine.queueRelativeMove(delta, motion.getFeedrate())) {
+			// the machine never got the motion, so the planner mustn't count it either
+			motion.undo();
+			return 0;
+		}
+		return Math.max(1, Math.round(played * 1000000.0));
+	}
+
+	/**
+	 * Reset the Machine and parameters. This may be called from any thread;
+	 * the reset is done by the scheduler thread as soon as it wakes up.
+	 */
+	public void resetMachine() {
+		resetRequested.set(true);
+		wake();
+	}
+
+	private void reset() {
+		if (stream != null) {
+			for (String code : NoteMotion.RESET_CODES) {
+				if (!stream.offer(code)) {
+					System.err.println("Couldn't queue reset code: " + code);
+				}
+			}
+			// flushing clears the machine's queue, which mustn't cut the homing short
+			if (!stream.barrier()) {
+				System.err.println("Couldn't queue the end of the reset");
+			}
+		}
+		motion.reset();
+		// a position read back from an earlier flush no longer applies
+		lastFlush = -1;
+	}
+}
@@ -0,0 +1,230 @@
+package jp.kshoji;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * State of the 128 MIDI notes, written by the MIDI receiver and read by the
+ * note schedulers.
+ *
+ * The table is a 128-bit active mask plus per-note onset times, velocities and
+ * note-on counters, all held in atomic arrays. Writers never wait on readers,
+ * and readers take a consistent copy with {@link #snapshot(Snapshot)}, retrying
+ * if a write happened meanwhile. Nothing is allocated per event.
+ *
+ * @author kshoji
+ */
+public class NoteTable {
+	public static final int NOTE_COUNT = 128;
+
+	// even while the table is stable, odd while a writer is updating it
+	private final AtomicLong sequence = new AtomicLong(0);
+
+	// bit n of word n/64 is set while note n is held
+	private final AtomicLongArray activeMask = new AtomicLongArray(2);
+	// time of the last note-on, in microseconds
+	private final AtomicLongArray onset = new AtomicLongArray(NOTE_COUNT);
+	// velocity of the last note-on
+	private final AtomicIntegerArray velocity = new AtomicIntegerArray(NOTE_COUNT);
+	// number of note-ons, so that a re-struck note can be told apart
+	private final AtomicIntegerArray counter = new AtomicIntegerArray(NOTE_COUNT);
+	// 14-bit pitch bend, applied to all notes
+	private final AtomicInteger pitchBend = new AtomicInteger(PitchTable.CENTER_BEND);
+
+	// offset from the MIDI device's time stamps to our clock, only touched by writers
+	private long timeStampOffset = 0;
+	private boolean hasTimeStampOffset = false;
+
+	/**
+	 * A consistent copy of the table. Allocate one per reader and reuse it.
+	 */
+	public static class Snapshot {
+		long mask0, mask1;
+		int pitchBend = PitchTable.CENTER_BEND;
+		final long[] onset = new long[NOTE_COUNT];
+		final int[] velocity = new int[NOTE_COUNT];
+		final int[] counter = new int[NOTE_COUNT];
+
+		/**
+		 * @param note MIDI note number
+		 * @return true if the note was held
+		 */
+		public boolean isActive(int note) {
+			long mask = note < 64 ? mask0 : mask1;
+			return (mask & (1L << (note & 63))) != 0;
+		}
+
+		/**
+		 * Find the next held note.
+		 *
+		 * @param from MIDI note number to start from
+		 * @return MIDI note number, or -1 if no more notes are held
+		 */
+		public int nextActive(int from) {
+			if (from < 64) {
+				long mask = mask0 & (-1L << from);
+				if (mask != 0) {
+					return Long.numberOfTrailingZeros(mask);
+				}
+				from = 64;
+			}
+			if (from < NOTE_COUNT) {
+				long mask = mask1 & (-1L << (from & 63));
+				if (mask != 0) {
+					return 64 + Long.numberOfTrailingZeros(mask);
+				}
+			}
+			return -1;
+		}
+
+		public long getOnset(int note) {
+			return onset[note];
+		}
+
+		public int getVelocity(int note) {
+			return velocity[note];
+		}
+
+		public int getCounter(int note) {
+			return counter[note];
+		}
+
+		public int getPitchBend() {
+			return pitchBend;
+		}
+	}
+
+	/**
+	 * current time in microseconds
+	 *
+	 * @return
+	 */
+	public static long nowMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(System.nanoTime());
+	}
+
+	/**
+	 * Convert MIDI time stamp into our clock.
+	 *
+	 * @param timeStamp MIDI time stamp in microseconds, or -1 if not supported
+	 * @return time in microseconds
+	 */
+	private long toLocalMicros(long timeStamp) {
+		long now = nowMicros();
+		if (timeStamp < 0) {
+			return now;
+		}
+		// an event can't happen after we received it, so follow the device clock as it drifts.
+		if (!hasTimeStampOffset || timeStamp + timeStampOffset > now) {
+			timeStampOffset = now - timeStamp;
+			hasTimeStampOffset = true;
+		}
+		return timeStamp + timeStampOffset;
+	}
+
+	private void beginWrite() {
+		while (true) {
+			long current = sequence.get();
+			if ((current & 1) == 0 && sequence.compareAndSet(current, current + 1)) {
+				return;
+			}
+		}
+	}
+
+	private void endWrite() {
+		sequence.incrementAndGet();
+	}
+
+	private void setActive(int note, boolean active) {
+		int word = note >> 6;
+		long bit = 1L << (note & 63);
+		long mask = activeMask.get(word);
+		activeMask.set(word, active ? mask | bit : mask & ~bit);
+	}
+
+	/**
+	 * called by the MIDI receiver when a note starts
+	 *
+	 * @param note MIDI note number
+	 * @param noteVelocity MIDI velocity
+	 * @param timeStamp MIDI time stamp in microseconds
+	 * @return the time of the note-on, in microseconds
+	 */
+	public long noteOn(int note, int noteVelocity, long timeStamp) {
+		beginWrite();
+		try {
+			long time = toLocalMicros(timeStamp);
+			onset.set(note, time);
+			velocity.set(note, noteVelocity);
+			counter.incrementAndGet(note);
+			setActive(note, true);
+			return time;
+		} finally {
+			endWrite();
+		}
+	}
+
+	/**
+	 * called by the MIDI receiver when a note stops
+	 *
+	 * @param note MIDI note number
+	 * @param timeStamp MIDI time stamp in microseconds
+	 * @return the time of the note-off, in microseconds
+	 */
+	public long noteOff(int note, long timeStamp) {
+		beginWrite();
+		try {
+			long time = toLocalMicros(timeStamp);
+			setActive(note, false);
+			return time;
+		} finally {
+			endWrite();
+		}
+	}
+
+	/**
+	 * called by the MIDI receiver when the pitch bend changes
+	 *
+	 * @param bend 14-bit pitch bend value
+	 * @param timeStamp MIDI time stamp in microseconds
+	 */
+	public void pitchBend(int bend, long timeStamp) {
+		beginWrite();
+		try {
+			toLocalMicros(timeStamp);
+			pitchBend.set(bend);
+		} finally {
+			endWrite();
+		}
+	}
+
+	/**
+	 * Copy the table. Never blocks the writers; retries instead if a write
+	 * happened while copying.
+	 *
+	 * @param snapshot filled with the current state
+	 */
+	public void snapshot(Snapshot snapshot) {
+		while (true) {
+			long before = sequence.get();
+			if ((before & 1) != 0) {
+				Thread.yield();
+				continue;
+			}
+			snapshot.mask0 = activeMask.get(0);
+			snapshot.mask1 = activeMask.get(1);
+			snapshot.pitchBend = pitchBend.get();
+			for (int note = snapshot.nextActive(0); note >= 0; note = snapshot.nextActive(note + 1)) {
+				snapshot.onset[note] = onset.get(note);
+				snapshot.velocity[note] = velocity.get(note);
+				snapshot.counter[note] = counter.get(note);
+			}
+			if (sequence.get() == before) {
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package jp.kshoji;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import replicatorg.app.Base;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.util.Point5d;
+
+/**
+ * Axis speeds for every MIDI note and pitch bend, calibrated for one machine.
+ *
+ * The pitch of an axis is its step rate, limited by the axis' maximum
+ * feedrate. The table holds the step rate of each axis for each pitch, in
+ * cents. The firmware only times the axis with the most steps in a move (the
+ * master) to a whole microsecond interval, and steps the others in proportion
+ * to it (see Sanguino3GDriver.convertFeedrateToMicros), so the rounding is
+ * done for a whole chord at once by getChordSpeeds(). Tables are kept per
+ * MachineModel, and rebuilt only when the model's steps per mm or maximum
+ * feedrates change.
+ *
+ * @author kshoji
+ */
+public class PitchTable {
+	/** pitch bend value for no bend */
+	public static final int CENTER_BEND = 8192;
+	// X, Y and Z
+	private static final int AXES = 3;
+	private static final int DEFAULT_BEND_RANGE = 2;
+
+	private static final Map<MachineModel, PitchTable> tables = new WeakHashMap<MachineModel, PitchTable>();
+
+	// the model settings the table was built from
+	private final double[] fingerprint;
+	private final int bendRangeCents;
+	// the cents of index 0, the lowest note bent fully down
+	private final int minCents;
+	// steps per second, 0 if the axis can't step
+	private final double[][] stepRate;
+
+	/**
+	 * Get the table for the machine, building it if the machine settings changed.
+	 *
+	 * @param model
+	 * @return
+	 */
+	public static synchronized PitchTable forModel(MachineModel model) {
+		double[] fingerprint = fingerprint(model);
+		PitchTable table = tables.get(model);
+		if (table == null || !Arrays.equals(table.fingerprint, fingerprint)) {
+			table = new PitchTable(fingerprint);
+			tables.put(model, table);
+		}
+		return table;
+	}
+
+	private static double[] fingerprint(MachineModel model) {
+		Point5d stepsPerMM = model.getStepsPerMM();
+		Point5d maximumFeedrates = model.getMaximumFeedrates();
+		double[] fingerprint = new double[AXES * 2 + 1];
+		for (int axis = 0; axis < AXES; axis++) {
+			fingerprint[axis] = stepsPerMM.get(axis);
+			fingerprint[AXES + axis] = maximumFeedrates.get(axis);
+		}
+		fingerprint[AXES * 2] = Base.preferences.getInt("midibot.pitch_bend_range", DEFAULT_BEND_RANGE);
+		return fingerprint;
+	}
+
+	private PitchTable(double[] fingerprint) {
+		this.fingerprint = fingerprint;
+		bendRangeCents = (int) fingerprint[AXES * 2] * 100;
+		minCents = -bendRangeCents;
+		int size = NoteTable.NOTE_COUNT * 100 + bendRangeCents * 2;
+
+		stepRate = new double[AXES][size];
+		for (int axis = 0; axis < AXES; axis++) {
+			double stepsPerMM = fingerprint[axis];
+			double maximumFeedrate = fingerprint[AXES + axis];
+			if (stepsPerMM <= 0) {
+				continue;
+			}
+			// the fastest the axis may step, at a whole microsecond interval
+			double maxRate = 1000000.0;
+			if (maximumFeedrate > 0) {
+				maxRate = 1000000.0 / Math.max(1, Math.ceil(60000000.0 / (maximumFeedrate * stepsPerMM)));
+			}
+			for (int i = 0; i < size; i++) {
+				// 10 mm/s at A4
+				double target = 10.0 * Math.pow(2.0, (minCents + i - 6900) / 1200.0);
+				stepRate[axis][i] = Math.min(maxRate, target * stepsPerMM);
+			}
+		}
+	}
+
+	private int index(int note, int bend) {
+		int cents = note * 100 + (bend - CENTER_BEND) * bendRangeCents / CENTER_BEND;
+		return Math.max(0, Math.min(stepRate[0].length - 1, cents - minCents));
+	}
+
+	/**
+	 * Get the axis speeds for a chord, as the firmware will run them: the
+	 * master axis steps at a whole microsecond interval, and the others keep
+	 * their ratio to it.
+	 *
+	 * @param notes MIDI note number for X, Y and Z, or -1 for no note
+	 * @param bend 14-bit pitch bend value
+	 * @param speed filled with the axis speeds in mm/s, 0 if no note
+	 * @return the master axis' step interval in microseconds, 0 if no axis moves
+	 */
+	public int getChordSpeeds(int[] notes, int bend, double[] speed) {
+		double masterRate = 0;
+		for (int axis = 0; axis < AXES; axis++) {
+			double rate = (notes[axis] < 0) ? 0 : stepRate[axis][index(notes[axis], bend)];
+			speed[axis] = rate;
+			masterRate = Math.max(masterRate, rate);
+		}
+		if (masterRate == 0) {
+			return 0;
+		}
+		long interval = Math.max(1, Math.round(1000000.0 / masterRate));
+		double scale = 1000000.0 / (interval * masterRate);
+		for (int axis = 0; axis < AXES; axis++) {
+			if (speed[axis] > 0) {
+				speed[axis] = speed[axis] * scale / fingerprint[axis];
+			}
+		}
+		return (int) Math.min(interval, Integer.MAX_VALUE);
+	}
+}
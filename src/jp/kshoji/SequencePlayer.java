@@ -0,0 +1,326 @@
+package jp.kshoji;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import replicatorg.drivers.commands.Delay;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.drivers.commands.QueueRelativePoint;
+import replicatorg.machine.MachineInterface;
+import replicatorg.machine.builder.Streaming;
+import replicatorg.util.Point5d;
+
+/**
+ * Plays a Standard MIDI File with one or more machines.
+ *
+ * The whole song is compiled into motion commands before playback starts:
+ * the tempo map is applied, notes are assigned to the axes of the machines,
+ * and the axis direction reversals are planned. At playback the commands are
+ * only written to each machine's stream, which keeps the machine's buffer full.
+ *
+ * @author kshoji
+ */
+public class SequencePlayer {
+	private static final int META_TEMPO = 0x51;
+	// microseconds per quarter note, until the first tempo event
+	private static final long DEFAULT_TEMPO = 500000;
+	// channel 10 is for drums, which have no pitch
+	private static final int DRUM_CHANNEL = 9;
+
+	/**
+	 * a tempo change, pitch bend or note, in the order to be applied at the same tick
+	 */
+	private static class Event implements Comparable<Event> {
+		static final int TEMPO = 0;
+		static final int PITCH_BEND = 1;
+		static final int NOTE_OFF = 2;
+		static final int NOTE_ON = 3;
+
+		final long tick;
+		final int type;
+		final int value;
+
+		Event(long tick, int type, int value) {
+			this.tick = tick;
+			this.type = type;
+			this.value = value;
+		}
+
+		@Override
+		public int compareTo(Event other) {
+			if (tick != other.tick) {
+				return tick < other.tick ? -1 : 1;
+			}
+			return type - other.type;
+		}
+	}
+
+	private final List<MachineInterface> machines;
+	// the compiled commands for each machine
+	private final List<List<DriverCommand>> commands;
+	private final List<Feeder> feeders = new ArrayList<Feeder>();
+
+	/**
+	 * Compile the sequence.
+	 *
+	 * @param machines the machines to play with, three voices each
+	 * @param sequence the song
+	 */
+	public SequencePlayer(List<MachineInterface> machines, Sequence sequence) {
+		this.machines = machines;
+
+		commands = new ArrayList<List<DriverCommand>>();
+		for (int i = 0; i < machines.size(); i++) {
+			commands.add(new ArrayList<DriverCommand>());
+		}
+		compile(sequence);
+	}
+
+	/**
+	 * @return the number of commands compiled for all machines
+	 */
+	public int getCommandCount() {
+		int count = 0;
+		for (List<DriverCommand> list : commands) {
+			count += list.size();
+		}
+		return count;
+	}
+
+	private List<Event> collectEvents(Sequence sequence) {
+		List<Event> events = new ArrayList<Event>();
+		for (Track track : sequence.getTracks()) {
+			for (int i = 0; i < track.size(); i++) {
+				MidiEvent midiEvent = track.get(i);
+				MidiMessage message = midiEvent.getMessage();
+				if (message instanceof MetaMessage) {
+					MetaMessage meta = (MetaMessage) message;
+					byte[] data = meta.getData();
+					if (meta.getType() == META_TEMPO && data.length >= 3) {
+						int tempo = ((data[0] & 0xff) << 16) | ((data[1] & 0xff) << 8) | (data[2] & 0xff);
+						events.add(new Event(midiEvent.getTick(), Event.TEMPO, tempo));
+					}
+				} else if (message instanceof ShortMessage) {
+					ShortMessage shortMessage = (ShortMessage) message;
+					if (shortMessage.getChannel() == DRUM_CHANNEL) {
+						continue;
+					}
+					switch (shortMessage.getCommand()) {
+					case ShortMessage.NOTE_ON:
+						events.add(new Event(midiEvent.getTick(), shortMessage.getData2() != 0 ? Event.NOTE_ON : Event.NOTE_OFF, shortMessage.getData1()));
+						break;
+					case ShortMessage.NOTE_OFF:
+						events.add(new Event(midiEvent.getTick(), Event.NOTE_OFF, shortMessage.getData1()));
+						break;
+					case ShortMessage.PITCH_BEND:
+						events.add(new Event(midiEvent.getTick(), Event.PITCH_BEND, (shortMessage.getData2() << 7) | shortMessage.getData1()));
+						break;
+					}
+				}
+			}
+		}
+		// stable, so events at the same tick keep the track order
+		Collections.sort(events);
+		return events;
+	}
+
+	/**
+	 * Compile the sequence into motion commands for each machine.
+	 *
+	 * @param sequence
+	 */
+	private void compile(Sequence sequence) {
+		int voiceCount = machines.size() * NoteScheduler.VOICES;
+		int[] voiceNote = new int[voiceCount];
+		long[] voiceOnset = new long[voiceCount];
+		for (int voice = 0; voice < voiceCount; voice++) {
+			voiceNote[voice] = -1;
+		}
+
+		NoteMotion[] motions = new NoteMotion[machines.size()];
+		// rest left over from the last Delay of each machine, in microseconds
+		long[] restMicros = new long[machines.size()];
+		for (int i = 0; i < motions.length; i++) {
+			motions[i] = new NoteMotion(PitchTable.forModel(machines.get(i).getModel()), new TravelPlanner(machines.get(i).getModel()));
+		}
+
+		boolean smpte = sequence.getDivisionType() != Sequence.PPQ;
+		long tempo = DEFAULT_TEMPO;
+		int bend = PitchTable.CENTER_BEND;
+		long lastTick = 0;
+		// the tick to microsecond conversion is kept exact by carrying the remainder
+		long time = 0;
+		long timeRemainder = 0;
+
+		for (Event event : collectEvents(sequence)) {
+			if (event.tick > lastTick) {
+				long numerator;
+				long denominator;
+				if (smpte) {
+					numerator = (event.tick - lastTick) * 1000000L;
+					denominator = (long) (sequence.getDivisionType() * sequence.getResolution());
+				} else {
+					numerator = (event.tick - lastTick) * tempo;
+					denominator = sequence.getResolution();
+				}
+				numerator += timeRemainder;
+				long next = time + numerator / denominator;
+				timeRemainder = numerator % denominator;
+
+				for (int machine = 0; machine < motions.length; machine++) {
+					emit(machine, voiceNote, bend, motions[machine], next - time, restMicros);
+				}
+				time = next;
+				lastTick = event.tick;
+			}
+
+			switch (event.type) {
+			case Event.TEMPO:
+				tempo = event.value;
+				break;
+			case Event.PITCH_BEND:
+				bend = event.value;
+				break;
+			case Event.NOTE_OFF:
+				for (int voice = 0; voice < voiceCount; voice++) {
+					if (voiceNote[voice] == event.value) {
+						voiceNote[voice] = -1;
+					}
+				}
+				break;
+			case Event.NOTE_ON:
+				int chosen = -1;
+				for (int voice = 0; voice < voiceCount; voice++) {
+					if (voiceNote[voice] == event.value) {
+						// struck again
+						chosen = voice;
+						break;
+					}
+					if (voiceNote[voice] < 0 && chosen < 0) {
+						chosen = voice;
+					}
+				}
+				if (chosen < 0) {
+					// all voices are busy, take over the oldest one
+					chosen = 0;
+					for (int voice = 1; voice < voiceCount; voice++) {
+						if (voiceOnset[voice] < voiceOnset[chosen]) {
+							chosen = voice;
+						}
+					}
+				}
+				voiceNote[chosen] = event.value;
+				voiceOnset[chosen] = time;
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Append the motion of one machine for the specified length.
+	 *
+	 * @param machine index of the machine
+	 * @param voiceNote MIDI note number of each voice
+	 * @param bend 14-bit pitch bend value
+	 * @param motion
+	 * @param length in microseconds
+	 * @param restMicros rest left over for each machine
+	 */
+	private void emit(int machine, int[] voiceNote, int bend, NoteMotion motion, long length, long[] restMicros) {
+		List<DriverCommand> list = commands.get(machine);
+		int first = machine * NoteScheduler.VOICES;
+		int note1 = voiceNote[first];
+		int note2 = voiceNote[first + 1];
+		int note3 = voiceNote[first + 2];
+
+		if (note1 < 0 && note2 < 0 && note3 < 0) {
+			// rest, the firmware counts in milliseconds
+			restMicros[machine] += length;
+			long millis = restMicros[machine] / 1000;
+			if (millis > 0) {
+				list.add(new Delay(millis));
+				restMicros[machine] -= millis * 1000;
+			}
+			return;
+		}
+
+		// the chord lasts exactly this long, so the planner can turn the axes around where it suits the whole chord
+		double remaining = length / 1000000.0;
+		while (remaining > 0.000001) {
+			Point5d delta = new Point5d();
+			double played = motion.move(note1, note2, note3, bend, remaining, remaining, delta);
+			list.add(new QueueRelativePoint(delta, motion.getFeedrate()));
+			remaining -= played;
+		}
+	}
+
+	/**
+	 * start playing on all machines
+	 */
+	public void start() {
+		for (int i = 0; i < machines.size(); i++) {
+			Feeder feeder = new Feeder(machines.get(i), commands.get(i));
+			feeders.add(feeder);
+			feeder.start();
+		}
+	}
+
+	/**
+	 * stop playing
+	 */
+	public void stop() {
+		for (Feeder feeder : feeders) {
+			feeder.interrupt();
+		}
+	}
+
+	/**
+	 * Writes the compiled commands to one machine.
+	 */
+	private static class Feeder extends Thread {
+		final MachineInterface machine;
+		final List<DriverCommand> commands;
+
+		Feeder(MachineInterface machine, List<DriverCommand> commands) {
+			super("Sequence Feeder");
+			this.machine = machine;
+			this.commands = commands;
+		}
+
+		@Override
+		public void run() {
+			Streaming stream = null;
+			try {
+				// wait for the connection
+				while (!machine.getMachineState().canPrint()) {
+					sleep(100);
+				}
+				stream = machine.buildStreaming(Streaming.DEFAULT_CAPACITY);
+				for (String code : NoteMotion.RESET_CODES) {
+					stream.put(code);
+				}
+				for (DriverCommand command : commands) {
+					if (!stream.put(command)) {
+						System.err.println("Stream closed, stopped playing.");
+						break;
+					}
+				}
+			} catch (InterruptedException e) {
+				machine.stopMotion();
+			} finally {
+				if (stream != null) {
+					// the rest of the song is played, then the build finishes
+					stream.close();
+				}
+			}
+		}
+	}
+}
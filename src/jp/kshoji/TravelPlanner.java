@@ -0,0 +1,217 @@
+package jp.kshoji;
+
+import replicatorg.app.Base;
+import replicatorg.machine.model.BuildVolume;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.util.Point5d;
+
+/**
+ * Plans where the axes turn around while notes are played.
+ *
+ * Each axis runs at the speed of its note, so the only freedom is when it
+ * reverses. When a chord starts, every axis heads for the side of the build
+ * volume with enough room for the whole chord, or the farther side if neither
+ * has; while the chord is held, an axis only reverses when it reaches the
+ * edge. A segment ends when the first axis reaches an edge, so a chord is
+ * played with as few segments as the build volume allows.
+ *
+ * @author kshoji
+ */
+public class TravelPlanner {
+	// X, Y and Z
+	private static final int AXES = 3;
+	private static final double DEFAULT_MARGIN_MM = 5.0;
+	private static final double EPSILON = 1e-9;
+	// number of planned segments remembered for rewind()
+	private static final int HISTORY = 32;
+
+	// travel limits relative to the reset position (NoteMotion.RESET_X/Y/Z), in mm
+	private final double[] min = new double[AXES];
+	private final double[] max = new double[AXES];
+
+	private final double[] position = new double[AXES];
+	private final boolean[] forward = new boolean[AXES];
+	// axes with no room either way in the segment being planned
+	private final boolean[] idle = new boolean[AXES];
+
+	// the last planned segments, as a ring: length in seconds and distance per axis
+	private final double[] historyLength = new double[HISTORY];
+	private final double[][] historyDistance = new double[HISTORY][AXES];
+	private int historyEnd = 0;
+	private int historyCount = 0;
+
+	// the state before the last plan(), for undo()
+	private final double[] undoPosition = new double[AXES];
+	private final boolean[] undoForward = new boolean[AXES];
+	private int undoHistoryCount;
+	private boolean canUndo = false;
+
+	/**
+	 * @param model the machine to play with
+	 */
+	public TravelPlanner(MachineModel model) {
+		double margin = Base.preferences.getDouble("midibot.travel_margin_mm", DEFAULT_MARGIN_MM);
+		BuildVolume volume = model.getBuildVolume();
+		setLimits(0, -volume.getX() / 2.0 + margin - NoteMotion.RESET_X, volume.getX() / 2.0 - margin - NoteMotion.RESET_X);
+		setLimits(1, -volume.getY() / 2.0 + margin - NoteMotion.RESET_Y, volume.getY() / 2.0 - margin - NoteMotion.RESET_Y);
+		setLimits(2, margin - NoteMotion.RESET_Z, volume.getZ() - margin - NoteMotion.RESET_Z);
+		reset();
+	}
+
+	private void setLimits(int axis, double low, double high) {
+		if (low >= 0 || high <= 0) {
+			// the reset position is outside the volume, keep to a small box around it
+			low = -DEFAULT_MARGIN_MM;
+			high = DEFAULT_MARGIN_MM;
+		}
+		min[axis] = low;
+		max[axis] = high;
+	}
+
+	/**
+	 * reset the parameters, after the machine moved to the reset position
+	 */
+	public void reset() {
+		for (int axis = 0; axis < AXES; axis++) {
+			position[axis] = 0;
+			forward[axis] = true;
+		}
+		historyCount = 0;
+		canUndo = false;
+	}
+
+	/**
+	 * Forget the last planned segment, because it never reached the machine.
+	 * Only the segment planned last can be undone, and only until the
+	 * planner is changed some other way.
+	 */
+	public void undo() {
+		if (!canUndo) {
+			return;
+		}
+		for (int axis = 0; axis < AXES; axis++) {
+			position[axis] = undoPosition[axis];
+			forward[axis] = undoForward[axis];
+		}
+		historyEnd = (historyEnd + HISTORY - 1) % HISTORY;
+		historyCount = undoHistoryCount;
+		canUndo = false;
+	}
+
+	/**
+	 * Move the planned position back, for segments that were cut off before
+	 * the machine played them.
+	 *
+	 * @param seconds the length not played, counted back from the end of the last planned segment
+	 */
+	public void rewind(double seconds) {
+		while (seconds > 0 && historyCount > 0) {
+			int last = (historyEnd + HISTORY - 1) % HISTORY;
+			double fraction = Math.min(1.0, seconds / historyLength[last]);
+			for (int axis = 0; axis < AXES; axis++) {
+				double distance = historyDistance[last][axis] * fraction;
+				position[axis] -= distance;
+				historyDistance[last][axis] -= distance;
+			}
+			seconds -= historyLength[last];
+			historyLength[last] *= 1.0 - fraction;
+			if (fraction >= 1.0) {
+				historyEnd = last;
+				historyCount--;
+			}
+		}
+		canUndo = false;
+	}
+
+	/**
+	 * @param out filled with the planned position relative to the reset position, in mm
+	 */
+	public void getPosition(double[] out) {
+		for (int axis = 0; axis < AXES; axis++) {
+			out[axis] = position[axis];
+		}
+	}
+
+	/**
+	 * Correct the planned position, when the machine reported where it really is.
+	 *
+	 * @param offset the error of the planned position per axis, in mm
+	 */
+	public void shift(double[] offset) {
+		for (int axis = 0; axis < AXES; axis++) {
+			position[axis] += offset[axis];
+		}
+		canUndo = false;
+	}
+
+	private double room(int axis, boolean toward) {
+		// the position may be outside the limits after shift()
+		return Math.max(0, toward ? max[axis] - position[axis] : position[axis] - min[axis]);
+	}
+
+	/**
+	 * Plan the next segment.
+	 *
+	 * @param speed speed of each axis in mm/s, 0 for idle axes
+	 * @param length the longest segment wanted, in seconds
+	 * @param remaining how long the chord will still be held, in seconds, or Double.POSITIVE_INFINITY if unknown
+	 * @param chordStart true if the chord changed since the last segment
+	 * @param delta filled with the relative move
+	 * @return the length of the segment in seconds, at most length
+	 */
+	public double plan(double[] speed, double length, double remaining, boolean chordStart, Point5d delta) {
+		for (int axis = 0; axis < AXES; axis++) {
+			undoPosition[axis] = position[axis];
+			undoForward[axis] = forward[axis];
+		}
+		undoHistoryCount = historyCount;
+		canUndo = true;
+
+		double planned = length;
+		for (int axis = 0; axis < AXES; axis++) {
+			idle[axis] = speed[axis] <= 0;
+			if (idle[axis]) {
+				continue;
+			}
+			if (chordStart) {
+				// a new segment starts anyway, so turn around for free if it gives the chord more room
+				double need = speed[axis] * Math.min(remaining, Double.MAX_VALUE);
+				if (room(axis, forward[axis]) < need && room(axis, !forward[axis]) > room(axis, forward[axis])) {
+					forward[axis] = !forward[axis];
+				}
+			}
+			// an axis at the edge (or left just short of it by rewind()) turns around
+			if (room(axis, forward[axis]) / speed[axis] <= EPSILON) {
+				forward[axis] = !forward[axis];
+			}
+			if (room(axis, forward[axis]) / speed[axis] <= EPSILON) {
+				// no room either way, the limits are too small for this axis
+				idle[axis] = true;
+				continue;
+			}
+			planned = Math.min(planned, room(axis, forward[axis]) / speed[axis]);
+		}
+
+		for (int axis = 0; axis < AXES; axis++) {
+			double distance = idle[axis] ? 0 : speed[axis] * planned;
+			if (!forward[axis]) {
+				distance = -distance;
+			}
+			// the move never crosses a limit; a position put outside them by shift() isn't pulled back in a jump
+			double next = position[axis] + distance;
+			if (distance > 0) {
+				next = Math.min(next, Math.max(position[axis], max[axis]));
+			} else {
+				next = Math.max(next, Math.min(position[axis], min[axis]));
+			}
+			distance = next - position[axis];
+			position[axis] = next;
+			delta.set(axis, distance);
+			historyDistance[historyEnd][axis] = distance;
+		}
+		historyLength[historyEnd] = planned;
+		historyEnd = (historyEnd + 1) % HISTORY;
+		historyCount = Math.min(HISTORY, historyCount + 1);
+		return planned;
+	}
+}
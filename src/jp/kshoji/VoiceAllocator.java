@@ -0,0 +1,200 @@
+package jp.kshoji;
+
+import java.util.List;
+
+import replicatorg.app.Base;
+import replicatorg.machine.MachineInterface;
+
+/**
+ * Spreads the notes held on the MIDI receiver across the axes of several
+ * machines. Each machine is played by its own NoteScheduler, so adding a
+ * machine adds three voices without slowing down the others.
+ *
+ * Only the MIDI receiver thread calls noteOn/noteOff, so the voice state here
+ * needs no locking; the schedulers only see the note assigned to each axis.
+ *
+ * @author kshoji
+ */
+public class VoiceAllocator {
+	/**
+	 * which voice to take over when all voices are busy
+	 */
+	public enum StealMode {
+		OLDEST,
+		QUIETEST
+	}
+
+	private final NoteTable noteTable;
+	private final NoteScheduler[] schedulers;
+	private final StealMode stealMode;
+
+	// voice v is played by axis (v % VOICES) of machine (v / VOICES)
+	private final int[] voiceNote;
+	private final long[] voiceOnset;
+	private final int[] voiceVelocity;
+	// busy voices per machine, used while choosing a voice
+	private final int[] busyCount;
+
+	/**
+	 * @param machines the machines to play with
+	 * @param noteTable the notes held on the MIDI receiver
+	 */
+	public VoiceAllocator(List<MachineInterface> machines, NoteTable noteTable) {
+		this.noteTable = noteTable;
+		schedulers = new NoteScheduler[machines.size()];
+		for (int i = 0; i < schedulers.length; i++) {
+			schedulers[i] = new NoteScheduler(machines.get(i), noteTable);
+		}
+
+		int voices = schedulers.length * NoteScheduler.VOICES;
+		voiceNote = new int[voices];
+		voiceOnset = new long[voices];
+		voiceVelocity = new int[voices];
+		busyCount = new int[schedulers.length];
+		for (int voice = 0; voice < voices; voice++) {
+			voiceNote[voice] = -1;
+		}
+
+		StealMode mode;
+		try {
+			mode = StealMode.valueOf(Base.preferences.get("midibot.voice_stealing", StealMode.OLDEST.name()).toUpperCase());
+		} catch (IllegalArgumentException e) {
+			Base.logger.warning("Unknown voice stealing mode, using " + StealMode.OLDEST);
+			mode = StealMode.OLDEST;
+		}
+		stealMode = mode;
+	}
+
+	/**
+	 * start playing on all machines
+	 */
+	public void start() {
+		for (NoteScheduler scheduler : schedulers) {
+			scheduler.start();
+		}
+	}
+
+	/**
+	 * stop playing, and disconnect all machines
+	 */
+	public void stop() {
+		for (NoteScheduler scheduler : schedulers) {
+			scheduler.interrupt();
+		}
+	}
+
+	/**
+	 * reset all machines
+	 */
+	public void resetMachines() {
+		for (NoteScheduler scheduler : schedulers) {
+			scheduler.resetMachine();
+		}
+	}
+
+	/**
+	 * called by the MIDI receiver when a note starts
+	 *
+	 * @param note MIDI note number
+	 * @param velocity MIDI velocity
+	 * @param timeStamp MIDI time stamp in microseconds
+	 */
+	public void noteOn(int note, int velocity, long timeStamp) {
+		long time = noteTable.noteOn(note, velocity, timeStamp);
+
+		int voice = findVoice(note);
+		if (voice < 0) {
+			voice = chooseVoice(time);
+		}
+		voiceNote[voice] = note;
+		voiceOnset[voice] = time;
+		voiceVelocity[voice] = velocity;
+		schedulers[voice / NoteScheduler.VOICES].assign(voice % NoteScheduler.VOICES, note);
+	}
+
+	/**
+	 * called by the MIDI receiver when a note stops
+	 *
+	 * @param note MIDI note number
+	 * @param timeStamp MIDI time stamp in microseconds
+	 */
+	public void noteOff(int note, long timeStamp) {
+		noteTable.noteOff(note, timeStamp);
+
+		int voice = findVoice(note);
+		if (voice >= 0) {
+			voiceNote[voice] = -1;
+			schedulers[voice / NoteScheduler.VOICES].assign(voice % NoteScheduler.VOICES, -1);
+		}
+	}
+
+	/**
+	 * called by the MIDI receiver when the pitch bend changes
+	 *
+	 * @param bend 14-bit pitch bend value
+	 * @param timeStamp MIDI time stamp in microseconds
+	 */
+	public void pitchBend(int bend, long timeStamp) {
+		noteTable.pitchBend(bend, timeStamp);
+		for (NoteScheduler scheduler : schedulers) {
+			scheduler.wake();
+		}
+	}
+
+	/**
+	 * @param note MIDI note number
+	 * @return the voice playing the note, or -1
+	 */
+	private int findVoice(int note) {
+		for (int voice = 0; voice < voiceNote.length; voice++) {
+			if (voiceNote[voice] == note) {
+				return voice;
+			}
+		}
+		return -1;
+	}
+
+	private boolean isFree(int voice, long time) {
+		return voiceNote[voice] < 0 || voiceOnset[voice] + NoteScheduler.AUTO_STOP_MICROS <= time;
+	}
+
+	/**
+	 * Choose the voice for a new note: a free axis on the least busy machine,
+	 * or the voice selected by the steal mode when all voices are busy.
+	 *
+	 * @param time the time of the note-on, in microseconds
+	 * @return voice
+	 */
+	private int chooseVoice(long time) {
+		for (int machine = 0; machine < busyCount.length; machine++) {
+			busyCount[machine] = 0;
+		}
+		for (int voice = 0; voice < voiceNote.length; voice++) {
+			if (!isFree(voice, time)) {
+				busyCount[voice / NoteScheduler.VOICES]++;
+			}
+		}
+
+		int free = -1;
+		for (int voice = 0; voice < voiceNote.length; voice++) {
+			if (isFree(voice, time) && (free < 0 || busyCount[voice / NoteScheduler.VOICES] < busyCount[free / NoteScheduler.VOICES])) {
+				free = voice;
+			}
+		}
+		if (free >= 0) {
+			return free;
+		}
+
+		int steal = 0;
+		for (int voice = 1; voice < voiceNote.length; voice++) {
+			if (stealMode == StealMode.QUIETEST && voiceVelocity[voice] != voiceVelocity[steal]) {
+				if (voiceVelocity[voice] < voiceVelocity[steal]) {
+					steal = voice;
+				}
+			} else if (voiceOnset[voice] < voiceOnset[steal]) {
+				steal = voice;
+			}
+		}
+		return steal;
+	}
+}
@@ -1,123 +1,198 @@
 package replicatorg.app;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 public class GCode {
 
 	// These are the letter codes that we understand
-	static protected char[] codes = { 
+	static protected char[] codes = {
 		'A', 'B', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L',
 		'M', 'P', 'Q', 'R', 'S', 'T', 'X', 'Y', 'Z' };
-	
-	// pattern matchers.
-	static Pattern parenPattern  = Pattern.compile("\\((.*)\\)");
-	static Pattern semiPattern = Pattern.compile(";(.*)");
-	static Pattern deleteBlockPattern = Pattern.compile("^(\\.*)");
-	
-	
+
+	// Bit (code - 'A') is set for each of the codes above
+	static final int knownCodes;
+	static {
+		int mask = 0;
+		for (char code : codes) {
+			mask |= 1 << (code - 'A');
+		}
+		knownCodes = mask;
+	}
+
+	// Exact powers of ten, for parsing numbers without Double.parseDouble
+	private static final double[] powersOfTen = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	// Longest number whose digits fit exactly in a double
+	private static final int MAX_FAST_DIGITS = 15;
+
 	// The actual GCode command string
 	private String command;
 
 	// Parsed out comment
-	private String comment = new String();
-
-	private class gCodeParameter {
-		final public char code;
-		final public Double value;
-		gCodeParameter(char code, Double value) {
-			this.code = code;
-			this.value = value;
-		}
-	}
-	
-	// The set of parameters in this GCode
-	private List<gCodeParameter> parameters;
+	private String comment = "";
+
+	// Bit (code - 'A') is set for each code present in this GCode
+	private int present = 0;
+	// Bit (code - 'A') is set for each code followed by a number
+	private int valued = 0;
+	// The value of each code, indexed by (code - 'A')
+	private final double[] values = new double[26];
 
 	public GCode(String command) {
-		// Copy over the command
-		this.command = new String(command);
-		
-		// Initialize the present and value tables
-		this.parameters = new ArrayList<gCodeParameter>();
-		
+		set(command);
+	}
+
+	/**
+	 * Creates an empty GCode, to be filled in with set().
+	 */
+	public GCode() {
+		set("");
+	}
+
+	/**
+	 * Replace the contents of this GCode with a new line, so one object can be
+	 * reused for every line of a build.
+	 */
+	public void set(String command) {
+		comment = "";
+		present = 0;
+		// codes without a number read as 0, so clear the values left from the last line
+		while (valued != 0) {
+			values[Integer.numberOfTrailingZeros(valued)] = 0;
+			valued &= valued - 1;
+		}
+
 		// Parse (and strip) any comments out into a comment string
-		parseComments();
+		parseComments(command);
 
 		// Parse any codes out into the code tables
 		parseCodes();
 	}
-	
-	// Find any comments, store them, then remove them from the command 
-	private void parseComments() {
-		Matcher parenMatcher = parenPattern.matcher(command);
-		Matcher semiMatcher = semiPattern.matcher(command);
 
-		// Note that we only support one style of comments, and only one comment per row. 
-		if (parenMatcher.find())
-			comment = parenMatcher.group(1);
+	// Find any comments, store them, then remove them from the command.
+	// Note that we only support one style of comments, and only one comment per row:
+	// a ';' comment wins over a '(...)' comment, which runs from the first '(' to the last ')'.
+	private void parseComments(String line) {
+		int close = line.lastIndexOf(')');
+		int open = close < 0 ? -1 : line.indexOf('(');
+		if (open > close) {
+			open = -1;
+		}
+		int semi = line.indexOf(';');
 
-		if (semiMatcher.find())
-			comment = semiMatcher.group(1);
+		if (semi >= 0) {
+			comment = line.substring(semi + 1);
+		} else if (open >= 0) {
+			comment = line.substring(open + 1, close);
+		}
 
 		// clean it up.
-		comment = comment.trim();
-		comment = comment.replace('|', '\n');
+		if (comment.length() > 0) {
+			comment = comment.trim().replace('|', '\n');
+		}
 
 		// Finally, remove the comments from the command string
-		command = parenMatcher.replaceAll("");
-		
-		semiMatcher = semiPattern.matcher(command);
-		command = semiMatcher.replaceAll("");
+		if (open < 0) {
+			command = semi < 0 ? line : line.substring(0, semi);
+		} else if (semi >= 0 && semi < open) {
+			command = line.substring(0, semi);
+		} else {
+			// the first ';' outside of the parentheses ends the command
+			int end = line.indexOf(';', close + 1);
+			command = line.substring(0, open) + line.substring(close + 1, end < 0 ? line.length() : end);
+		}
 	}
 
-	// Find any codes, and store them
-	private void parseCodes() {
-		for (char code : codes) {
-			Pattern myPattern = Pattern.compile(code + "([0-9.+-]+)");
-			Matcher myMatcher = myPattern.matcher(command);
-
-			if (command.indexOf(code) >= 0) {
-				double value = 0;
-				
-				if (myMatcher.find()) {
-					String match = myMatcher.group(1);
-					value = Double.parseDouble(match);
+	private static boolean isNumberChar(char c) {
+		return (c >= '0' && c <= '9') || c == '.' || c == '+' || c == '-';
+	}
+
+	// Parse the number in command[start, end), made of the characters accepted by isNumberChar
+	private double parseNumber(int start, int end) {
+		int i = start;
+		boolean negative = false;
+		char c = command.charAt(i);
+		if (c == '+' || c == '-') {
+			negative = (c == '-');
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int fractionDigits = 0;
+		boolean point = false;
+		for (; i < end; i++) {
+			c = command.charAt(i);
+			if (c == '.' && !point) {
+				point = true;
+			} else if (c >= '0' && c <= '9') {
+				mantissa = mantissa * 10 + (c - '0');
+				digits++;
+				if (point) {
+					fractionDigits++;
 				}
-				
-				parameters.add(new gCodeParameter(code, value));
+			} else {
+				break;
+			}
+		}
+		if (i < end || digits == 0 || digits > MAX_FAST_DIGITS) {
+			// Signs or points in odd places, or too many digits: leave it to the library.
+			return Double.parseDouble(command.substring(start, end));
+		}
+		// Both operands are exact, so the division rounds exactly like Double.parseDouble.
+		double value = mantissa / powersOfTen[fractionDigits];
+		return negative ? -value : value;
+	}
+
+	// Find any codes, and store them. The value of a code is taken from its
+	// first occurrence that is followed by a number.
+	private void parseCodes() {
+		int length = command.length();
+		for (int i = 0; i < length; i++) {
+			char c = command.charAt(i);
+			if (c < 'A' || c > 'Z') {
+				continue;
+			}
+			int bit = 1 << (c - 'A');
+			if ((knownCodes & bit) == 0) {
+				continue;
+			}
+			present |= bit;
+			if ((valued & bit) != 0) {
+				continue;
+			}
+			int end = i + 1;
+			while (end < length && isNumberChar(command.charAt(end))) {
+				end++;
+			}
+			if (end > i + 1) {
+				values[c - 'A'] = parseNumber(i + 1, end);
+				valued |= bit;
+				i = end - 1;
 			}
 		}
 	}
 
 	public String getCommand() {
 		// TODO: Note that this is the command minus any comments.
-		return new String(command);
+		return command;
 	}
-	
+
 	public String getComment() {
-		return new String(comment);
+		return comment;
 	}
-	
+
 	public boolean hasCode(char searchCode) {
-		for (gCodeParameter parameter : parameters) {
-			if (parameter.code == searchCode) {
-				return true;
-			}
+		if (searchCode < 'A' || searchCode > 'Z') {
+			return false;
 		}
-		
-		return false;
+		return (present & (1 << (searchCode - 'A'))) != 0;
 	}
 
 	public double getCodeValue(char searchCode) {
-		for (gCodeParameter parameter : parameters) {
-			if (parameter.code == searchCode) {
-				return parameter.value;
-			}
+		if (hasCode(searchCode)) {
+			return values[searchCode - 'A'];
 		}
-		
+
 		return -1;	// TODO: What do we return if there is no code?
 	}
-}
\ No newline at end of file
+}
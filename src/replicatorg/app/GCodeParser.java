@@ -49,7 +49,6 @@
 package replicatorg.app;
 
 import java.util.EnumSet;
-import java.util.LinkedList;
 import java.util.Queue;
 
 import javax.vecmath.Point3d;
@@ -57,6 +56,7 @@ import javax.vecmath.Point3d;
 import replicatorg.app.exceptions.GCodeException;
 import replicatorg.drivers.DriverQueryInterface;
 import replicatorg.drivers.MultiTool;
+import replicatorg.drivers.commands.CommandPool;
 import replicatorg.drivers.commands.DriverCommand;
 import replicatorg.drivers.commands.DriverCommand.LinearDirection;
 import replicatorg.machine.model.AxisId;
@@ -83,7 +83,8 @@ public class GCodeParser {
 		}
 		
 		public void setTarget(Point5d temp) {
-			this.target = temp;
+			// the parser may reuse its point
+			this.target.set(temp);
 		}
 		
 		public void setRetract(double retract) {
@@ -171,92 +172,8 @@ public class GCodeParser {
 		}
 	}
 
-	// Arc drawing routine
-	// Note: 5D is not supported
-	Queue< DriverCommand > drawArc(Point5d center, Point5d endpoint, boolean clockwise) {
-		// System.out.println("Arc from " + current.toString() + " to " +
-		// endpoint.toString() + " with center " + center);
-
-		Queue< DriverCommand > points = new LinkedList< DriverCommand >();
-		
-		// angle variables.
-		double angleA;
-		double angleB;
-		double angle;
-		double radius;
-		double length;
-
-		// delta variables.
-		double aX;
-		double aY;
-		double bX;
-		double bY;
-
-		// figure out our deltas
-		Point5d current = driver.getCurrentPosition(false);
-		aX = current.x() - center.x();
-		aY = current.y() - center.y();
-		bX = endpoint.x() - center.x();
-		bY = endpoint.y() - center.y();
-
-		// Clockwise
-		if (clockwise) {
-			angleA = Math.atan2(bY, bX);
-			angleB = Math.atan2(aY, aX);
-		}
-		// Counterclockwise
-		else {
-			angleA = Math.atan2(aY, aX);
-			angleB = Math.atan2(bY, bX);
-		}
-
-		// Make sure angleB is always greater than angleA
-		// and if not add 2PI so that it is (this also takes
-		// care of the special case of angleA == angleB,
-		// ie we want a complete circle)
-		if (angleB <= angleA)
-			angleB += 2 * Math.PI;
-		angle = angleB - angleA;
-		// calculate a couple useful things.
-		radius = Math.sqrt(aX * aX + aY * aY);
-		length = radius * angle;
-
-		// for doing the actual move.
-		int steps;
-		int s;
-		int step;
-
-		// Maximum of either 2.4 times the angle in radians
-		// or the length of the curve divided by the curve section constant
-		steps = (int) Math.ceil(Math.max(angle * 2.4, length / curveSection));
-
-		// this is the real draw action.
-		Point5d newPoint = new Point5d(current);
-		double arcStartZ = current.z();
-		for (s = 1; s <= steps; s++) {
-			// Forwards for CCW, backwards for CW
-			if (!clockwise)
-				step = s;
-			else
-				step = steps - s;
-
-			// calculate our waypoint.
-			newPoint.setX(center.x() + radius * Math.cos(angleA + angle * ((double) step / steps)));
-			newPoint.setY(center.y() + radius * Math.sin(angleA + angle * ((double) step / steps)));
-			newPoint.setZ(arcStartZ + (endpoint.z() - arcStartZ) * s / steps);
-
-			// start the move
-			points.add(new replicatorg.drivers.commands.QueuePoint(newPoint));
-		}
-		
-		return points;
-	}
-	
-	// our curve section variables.
-	public static double curveSectionMM = Base.preferences.getDouble("replicatorg.parser.curve_segment_mm", 1.0);
-	public static double curveSectionInches = curveSectionMM / 25.4;
-
-	protected double curveSection = 0.0;
+	// the furthest an arc segment may stray from the true arc, in mm
+	public static double arcChordErrorMM = Base.preferences.getDouble("replicatorg.parser.arc_chord_error_mm", 0.01);
 
 	// our offset variables 0 = master, 1-6 = offsets 1-6
 	protected Point3d currentOffset;
@@ -279,6 +196,11 @@ public class GCodeParser {
 	public static int UNITS_INCHES = 1;
 
 	protected int units;
+
+	// when set, commands come from this pool and the GCode and position are reused for each line
+	private CommandPool commandPool = null;
+	private final GCode reusableCode = new GCode();
+	private final Point5d reusablePosition = new Point5d();
 	
 	/**
 	 * Creates the driver object.
@@ -286,7 +208,6 @@ public class GCodeParser {
 	public GCodeParser() {
 		// we default to millimeters
 		units = UNITS_MM;
-		curveSection = curveSectionMM;
 
 		// init our offset
 		currentOffset = new Point3d();
@@ -316,6 +237,29 @@ public class GCodeParser {
 		drillCycle = new DrillCycle();
 	}
 
+	/**
+	 * Take feedrate and move commands from the given pool, instead of allocating
+	 * them for each line. The caller runs the commands, and recycles them into
+	 * the pool afterwards.
+	 */
+	public void setCommandPool(CommandPool pool) {
+		commandPool = pool;
+	}
+
+	private DriverCommand newSetFeedrate(double feedrate) {
+		if (commandPool != null) {
+			return commandPool.obtainSetFeedrate(feedrate);
+		}
+		return new replicatorg.drivers.commands.SetFeedrate(feedrate);
+	}
+
+	private DriverCommand newQueuePoint(Point5d destination) {
+		if (commandPool != null) {
+			return commandPool.obtainQueuePoint(destination);
+		}
+		return new replicatorg.drivers.commands.QueuePoint(destination);
+	}
+
 	/**
 	 * Parses a line of GCode, sets up the variables, etc.
 	 * 
@@ -324,7 +268,24 @@ public class GCodeParser {
 	public boolean parse(String cmd, Queue< DriverCommand > commandQueue) {
 		
 		// First, parse the GCode string into an object we can query.
-		GCode gcode = new GCode(cmd);
+		GCode gcode;
+		if (commandPool != null) {
+			reusableCode.set(cmd);
+			gcode = reusableCode;
+		} else {
+			gcode = new GCode(cmd);
+		}
+
+		return parse(gcode, commandQueue);
+	}
+
+	/**
+	 * Sets up the variables, etc. from a line of GCode that has already been
+	 * tokenized, such as by a ParallelTokenizer.
+	 * 
+	 * @param gcode a line of GCode; it is not changed, and not kept
+	 */
+	public boolean parse(GCode gcode, Queue< DriverCommand > commandQueue) {
 
 		// Now, convert the GCode instruction into a series of driver commands,
 		// that will be executed by execute()
@@ -613,7 +574,13 @@ public class GCodeParser {
 		}
 		
 		// start us off at our current position...
-		Point5d temp = driver.getCurrentPosition(false);
+		Point5d temp;
+		if (commandPool != null) {
+			driver.getCurrentPosition(reusablePosition);
+			temp = reusablePosition;
+		} else {
+			temp = driver.getCurrentPosition(false);
+		}
 
 		// initialize our points, etc.
 		double iVal = convertToMM(gcode.getCodeValue('I'), units); // / X offset
@@ -686,7 +653,7 @@ public class GCodeParser {
 			feedrate = gcode.getCodeValue('F');
 			
 			// TODO: Why do we do this here, and not in individual commands?
-			commands.add(new replicatorg.drivers.commands.SetFeedrate(feedrate));
+			commands.add(newSetFeedrate(feedrate));
 		}
 		
 		int gCode = (int) gcode.getCodeValue('G');
@@ -695,40 +662,53 @@ public class GCodeParser {
 		// Linear Interpolation
 		// these are basically the same thing.
 		case 0:
-			commands.add(new replicatorg.drivers.commands.SetFeedrate(feedrate));
-			commands.add(new replicatorg.drivers.commands.QueuePoint(temp));
+			commands.add(newSetFeedrate(feedrate));
+			commands.add(newQueuePoint(temp));
 			
 			break;
 
 		// Rapid Positioning
 		case 1:
 			// set our target.
-			commands.add(new replicatorg.drivers.commands.SetFeedrate(feedrate));
-			commands.add(new replicatorg.drivers.commands.QueuePoint(temp));
+			commands.add(newSetFeedrate(feedrate));
+			commands.add(newQueuePoint(temp));
 			break;
 
 		// Clockwise arc
 		case 2:
 			// Counterclockwise arc
 		case 3: {
-			// call our arc drawing function.
-			// Note: We don't support 5D
+			// The arc is cut into segments as the driver takes them.
+			boolean clockwise = (gCode == 2);
 			if (gcode.hasCode('I') || gcode.hasCode('J')) {
-				// our centerpoint
-				Point5d center = new Point5d();
-				Point5d current = driver.getCurrentPosition(false);
-				center.setX(current.x() + iVal);
-				center.setY(current.y() + jVal);
-
-				// Get the points for the arc
-				if (gCode == 2)
-					commands.addAll(drawArc(center, temp, true));
-				else
-					commands.addAll(drawArc(center, temp, false));
+				commands.add(new replicatorg.drivers.commands.QueueArc(temp, iVal, jVal, clockwise, arcChordErrorMM));
 			}
 			// or we want a radius based one
 			else if (gcode.hasCode('R')) {
-				throw new GCodeException("G02/G03 arcs with (R)adius parameter are not supported yet.");
+				Point5d current = driver.getCurrentPosition(false);
+				double x = temp.x() - current.x();
+				double y = temp.y() - current.y();
+				double distance = Math.sqrt(x * x + y * y);
+				if (distance == 0) {
+					throw new GCodeException("G02/G03 arcs with (R)adius parameter must end away from where they start.");
+				}
+				// The center is on the line halfway between the ends, at this distance from it
+				// times 2 / distance. A negative radius takes the long way round.
+				double h = 4 * rVal * rVal - distance * distance;
+				if (h < 0) {
+					// Allow for rounding in a half circle.
+					if (h < -1e-6 * distance * distance) {
+						throw new GCodeException("G02/G03 arc radius is too small to reach the end point.");
+					}
+					h = 0;
+				}
+				h = -Math.sqrt(h) / distance;
+				if (!clockwise)
+					h = -h;
+				if (rVal < 0)
+					h = -h;
+				commands.add(new replicatorg.drivers.commands.QueueArc(temp,
+						0.5 * (x - y * h), 0.5 * (y + x * h), clockwise, arcChordErrorMM));
 			}
 		}
 			break;
@@ -757,14 +737,12 @@ public class GCodeParser {
 		case 20:
 		case 70:
 			units = UNITS_INCHES;
-			curveSection = curveSectionInches;
 			break;
 
 		// mm for Units
 		case 21:
 		case 71:
 			units = UNITS_MM;
-			curveSection = curveSectionMM;
 			break;
 
 		// This should be "return to home".  We need to introduce new GCodes for homing.
@@ -0,0 +1,160 @@
+package replicatorg.app;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Tokenizes lines of gcode into GCode objects on all cores, while the caller
+ * goes through them in order on its own thread.
+ *
+ * The lines are read in chunks, and each chunk is split up and tokenized on a
+ * ForkJoinPool. A few chunks are kept in flight ahead of the caller. Modal
+ * state (units, absolute mode, offsets, feedrate) is left to the GCodeParser the
+ * caller feeds the GCode to, as it only makes sense in order.
+ *
+ * To save garbage, each GCode object is reused for a later line, so it must not
+ * be kept once next() has been called again.
+ * @author kshoji
+ *
+ */
+public class ParallelTokenizer implements Iterable<GCode> {
+	// Lines read in one go, and tokenized as one task.
+	private static final int CHUNK_LINES = 2048;
+	// A task with more lines than this is split in two.
+	private static final int SPLIT_LINES = 256;
+
+	private static ForkJoinPool pool = null;
+
+	private static synchronized ForkJoinPool getPool() {
+		if (pool == null) {
+			// The workers are daemon threads, so the pool never holds up exit.
+			pool = new ForkJoinPool();
+		}
+		return pool;
+	}
+
+	private final Iterable<String> source;
+
+	public ParallelTokenizer(Iterable<String> source) {
+		this.source = source;
+	}
+
+	public Iterator<GCode> iterator() {
+		return new TokenIterator();
+	}
+
+	// A chunk of lines, and the GCode they tokenize into.
+	private static class Chunk {
+		final String[] lines = new String[CHUNK_LINES];
+		final GCode[] codes = new GCode[CHUNK_LINES];
+		int size = 0;
+		ForkJoinTask<?> task = null;
+	}
+
+	private static class Tokenize extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Chunk chunk;
+		private final int from;
+		private final int to;
+
+		Tokenize(Chunk chunk, int from, int to) {
+			this.chunk = chunk;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > SPLIT_LINES) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new Tokenize(chunk, from, middle), new Tokenize(chunk, middle, to));
+				return;
+			}
+			tokenize(chunk, from, to);
+		}
+	}
+
+	private static void tokenize(Chunk chunk, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (chunk.codes[i] == null) {
+				chunk.codes[i] = new GCode();
+			}
+			chunk.codes[i].set(chunk.lines[i]);
+			chunk.lines[i] = null;
+		}
+	}
+
+	private class TokenIterator implements Iterator<GCode> {
+		private final Iterator<String> lines = source.iterator();
+		// Chunks ahead of the caller. With one core, there's nothing to gain by
+		// handing the work over, so it is done on the caller's thread.
+		private final int parallelism = getPool().getParallelism();
+		private final int window = (parallelism > 1) ? 2 * parallelism : 1;
+		private final ArrayDeque<Chunk> inFlight = new ArrayDeque<Chunk>();
+		// Chunks done with, for reuse.
+		private final ArrayDeque<Chunk> spare = new ArrayDeque<Chunk>();
+
+		private Chunk current = null;
+		private int index = 0;
+
+		// Read and submit chunks until the window is full, or the lines run out.
+		private void fill() {
+			while (inFlight.size() < window && lines.hasNext()) {
+				Chunk chunk = spare.poll();
+				if (chunk == null) {
+					chunk = new Chunk();
+				}
+				chunk.size = 0;
+				while (chunk.size < CHUNK_LINES && lines.hasNext()) {
+					chunk.lines[chunk.size++] = lines.next();
+				}
+				if (parallelism > 1) {
+					chunk.task = getPool().submit(new Tokenize(chunk, 0, chunk.size));
+				} else {
+					tokenize(chunk, 0, chunk.size);
+				}
+				inFlight.add(chunk);
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (current == null || index >= current.size) {
+				if (current != null) {
+					spare.add(current);
+					current = null;
+				}
+				fill();
+				Chunk chunk = inFlight.poll();
+				if (chunk == null) {
+					return false;
+				}
+				if (chunk.task != null) {
+					chunk.task.join();
+					chunk.task = null;
+				}
+				current = chunk;
+				index = 0;
+			}
+			return true;
+		}
+
+		@Override
+		public GCode next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return current.codes[index++];
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -388,6 +388,17 @@ public interface Driver {
 	 */
 	public void stop(boolean abort);
 
+	/** Tell the driver that a stop is on its way, from any thread. Until the stop
+	 * request is cleared, the driver should give up on sending anything else to the
+	 * machine as soon as it can, by throwing a RetryException, so that the machine
+	 * thread gets to the stop within one packet.
+	 */
+	public void requestStop();
+
+	public boolean isStopRequested();
+
+	public void clearStopRequest();
+
 	public boolean hasSoftStop();
 
 	public boolean hasEmergencyStop();
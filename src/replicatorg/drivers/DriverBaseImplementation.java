@@ -82,6 +82,11 @@ public class DriverBaseImplementation implements Driver, DriverQueryInterface{
 	 */
 	protected boolean hasSoftStop = false;
 	
+	/**
+	 * Set from another thread when a stop is waiting to be sent.
+	 */
+	private volatile boolean stopRequested = false;
+	
 	/**
 	 * Creates the driver object.
 	 */
@@ -235,6 +240,9 @@ public class DriverBaseImplementation implements Driver, DriverQueryInterface{
 
 	protected final AtomicReference<Point5d> currentPosition =
 		new AtomicReference<Point5d>(null);
+
+	// Our own copy of the position set by setInternalPosition, updated in place.
+	private Point5d internalPosition = null;
 	
 	public void setCurrentPosition(Point5d p) throws RetryException {
 		currentPosition.set(p);
@@ -296,6 +304,21 @@ public class DriverBaseImplementation implements Driver, DriverQueryInterface{
 		}
 	}
 
+	/**
+	 * Same as getCurrentPosition(false), but copies the position into the given point
+	 * instead of allocating a new one.
+	 */
+	public void getCurrentPosition(Point5d position) {
+		synchronized(currentPosition)
+		{
+			if (positionLost()) {
+				position.set(getCurrentPosition(false));
+			} else {
+				position.set(currentPosition.get());
+			}
+		}
+	}
+
 	public Point5d getPosition() {
 		return getCurrentPosition(false);
 	}
@@ -310,7 +333,16 @@ public class DriverBaseImplementation implements Driver, DriverQueryInterface{
 	}
 
 	protected void setInternalPosition(Point5d position) {
-		currentPosition.set(position);
+		// Callers may reuse their point (see CommandPool), so keep a copy.
+		synchronized(currentPosition)
+		{
+			if (internalPosition == null || currentPosition.get() != internalPosition) {
+				internalPosition = new Point5d(position);
+				currentPosition.set(internalPosition);
+			} else {
+				internalPosition.set(position);
+			}
+		}
 	}
 	
 	/**
@@ -647,6 +679,18 @@ public class DriverBaseImplementation implements Driver, DriverQueryInterface{
 		Base.logger.info("Machine stop called.");
 	}
 
+	public void requestStop() {
+		stopRequested = true;
+	}
+
+	public boolean isStopRequested() {
+		return stopRequested;
+	}
+
+	public void clearStopRequest() {
+		stopRequested = false;
+	}
+
 	public void reset() {
 		// No implementation needed for synchronous machines.
 		Base.logger.info("Machine reset called.");
@@ -29,6 +29,9 @@ public interface DriverQueryInterface {
 
 	public Point5d getCurrentPosition(boolean b);
 
+	/** Copy the current position into the given point, without polling the machine unless the position was lost. */
+	public void getCurrentPosition(Point5d position);
+
 	public boolean isPassthroughDriver();
 	
 	public Version getVersion();
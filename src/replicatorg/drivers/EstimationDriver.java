@@ -25,18 +25,58 @@ package replicatorg.drivers;
 
 import java.awt.geom.Rectangle2D;
 
-import javax.vecmath.Point3d;
-
+import replicatorg.app.Base;
 import replicatorg.util.Point5d;
 
+/**
+ * Estimates the build time, etc.
+ *
+ * When the machine has accelerations configured for its axes, each move is
+ * timed with a trapezoidal speed profile. Like the firmware, the planner looks
+ * a few moves ahead: it slows down for corners, by how sharp they are, and to
+ * stop at the end of what it has seen. Otherwise every move is timed at its
+ * full feedrate. Nothing is allocated per move either way.
+ */
 public class EstimationDriver extends DriverBaseImplementation {
-	// build time in milliseconds
+	// Moves the planner looks ahead over, about what the firmware buffers.
+	private static final int LOOKAHEAD = 16;
+
+	private static final int AXES = 5;
+
+	// build time in milliseconds, of the moves that have left the planner
 	private double buildTime = 0.0;
 
 	// the length of our last move.
 	private double moveLength = 0.0;
+	// the feedrate of our last move, in mm/min.
+	private double moveFeedrate = 0.0;
 	
 	private Rectangle2D.Double bounds = new Rectangle2D.Double();
+
+	// How far a corner may cut inside the path, in mm; sets the speed through it.
+	private final double junctionDeviation = Base.preferences.getDouble("build.estimate_junction_deviation", 0.05);
+
+	// The moves in the planner, oldest first from planFirst: length in mm, full
+	// speed in mm/s, acceleration in mm/s^2, and the most speed the move may start with.
+	private final double[] planLength = new double[LOOKAHEAD];
+	private final double[] planSpeed = new double[LOOKAHEAD];
+	private final double[] planAcceleration = new double[LOOKAHEAD];
+	private final double[] planMaxEntry = new double[LOOKAHEAD];
+	// Speed each move starts with, as worked out by plan().
+	private final double[] planEntry = new double[LOOKAHEAD];
+	private int planFirst = 0;
+	private int planCount = 0;
+	// The speed the oldest move starts with; decided when the move before it left.
+	private double firstEntry = 0.0;
+
+	// Direction and speed of the last move, for the corner into the next one.
+	private final double[] lastDirection = new double[AXES];
+	private final double[] direction = new double[AXES];
+	private double lastSpeed = 0.0;
+	private boolean moving = false;
+
+	private final Point5d position = new Point5d();
+	private final Point5d delta = new Point5d();
 	
 	public EstimationDriver() {
 		super();
@@ -47,6 +87,8 @@ public class EstimationDriver extends DriverBaseImplementation {
 	public Rectangle2D.Double getBounds() { return bounds; }
 	
 	public void delay(long millis) {
+		// The machine finishes its moves first.
+		flushPlanner();
 		buildTime += (double) millis / 1000;
 	}
 
@@ -61,32 +103,185 @@ public class EstimationDriver extends DriverBaseImplementation {
 	 * @throws RetryException 
 	 */
 	public void queuePoint(Point5d p) throws RetryException {
-		Point5d delta = getDelta(p);
+		getCurrentPosition(position);
+		delta.sub(p, position);
+		for (int i = 0; i < AXES; i++) {
+			direction[i] = delta.get(i);
+		}
+		delta.absolute();
 
 		// add to the total length
-		moveLength = delta.get3D().distance(new Point3d());
+		moveLength = Math.sqrt(delta.x() * delta.x() + delta.y() * delta.y() + delta.z() * delta.z());
 
 		// Calculate the feedrate. This is the speed that the toolhead will
 		// be traveling at.
 		double feedrate = getSafeFeedrate(delta);
-
-		// mostly for estimation driver.
-		
-		double millis = moveLength / feedrate * 60000.0;
+		moveFeedrate = feedrate;
 
 		bounds.add(p.x(),p.y());
-		
-		// add it in!
-		if (millis > 0) {
-			buildTime = buildTime + millis;
-//			System.out.println(moveLength + "mm at " + feedrate + " takes " + Math.round(millis) + " millis (" + buildTime + "	total).");
+
+		if (isAccelerated()) {
+			planMove(feedrate);
+		} else {
+			double millis = moveLength / feedrate * 60000.0;
+			
+			// add it in!
+			if (millis > 0) {
+				buildTime = buildTime + millis;
+//				System.out.println(moveLength + "mm at " + feedrate + " takes " + Math.round(millis) + " millis (" + buildTime + "	total).");
+			}
 		}
 		
 		setInternalPosition(p);
 	}
 
+	/**
+	 * @return the estimated build time in millis, including the moves still in
+	 * the planner as though the machine stopped after them
+	 */
 	public double getBuildTime() {
-		return buildTime;
+		return buildTime + plan(false);
+	}
+
+	/** @return the feedrate the last queued move ran at, in mm/min */
+	protected double getMoveFeedrate() {
+		return moveFeedrate;
+	}
+
+	private boolean isAccelerated() {
+		Point5d accelerations = machine.getAccelerations();
+		for (int i = 0; i < AXES; i++) {
+			if (accelerations.get(i) > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Add the move in delta and direction to the planner.
+	private void planMove(double feedrate) {
+		// Moves of the extruder alone still take time.
+		double length = (moveLength > 0) ? moveLength : delta.length();
+		double fullLength = delta.length();
+		if (length == 0) {
+			return;
+		}
+
+		// The acceleration along the move, as limited by each axis it moves.
+		Point5d accelerations = machine.getAccelerations();
+		double acceleration = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < AXES; i++) {
+			if (delta.get(i) > 0 && accelerations.get(i) > 0) {
+				acceleration = Math.min(acceleration, accelerations.get(i) * length / delta.get(i));
+			}
+		}
+		for (int i = 0; i < AXES; i++) {
+			direction[i] /= fullLength;
+		}
+		double speed = feedrate / 60.0;
+
+		// The speed through the corner from the last move.
+		double maxEntry = 0.0;
+		if (moving) {
+			double cosine = 0.0;
+			for (int i = 0; i < AXES; i++) {
+				cosine -= lastDirection[i] * direction[i];
+			}
+			if (cosine < -0.999999) {
+				// Straight on.
+				maxEntry = Double.POSITIVE_INFINITY;
+			} else if (cosine < 0.999999) {
+				double sinHalf = Math.sqrt(0.5 * (1.0 - cosine));
+				maxEntry = Math.sqrt(acceleration * junctionDeviation * sinHalf / (1.0 - sinHalf));
+			}
+			maxEntry = Math.min(maxEntry, Math.min(speed, lastSpeed));
+		}
+		System.arraycopy(direction, 0, lastDirection, 0, AXES);
+		lastSpeed = speed;
+		moving = true;
+
+		if (planCount == LOOKAHEAD) {
+			// The oldest move leaves the planner, which has just enough room to stop after the newest.
+			plan(false);
+			buildTime += 1000.0 * getMoveTime(planFirst, planEntry[planFirst], planEntry[(planFirst + 1) % LOOKAHEAD]);
+			firstEntry = planEntry[(planFirst + 1) % LOOKAHEAD];
+			planFirst = (planFirst + 1) % LOOKAHEAD;
+			planCount--;
+		}
+		int index = (planFirst + planCount) % LOOKAHEAD;
+		planLength[index] = length;
+		planSpeed[index] = speed;
+		planAcceleration[index] = acceleration;
+		planMaxEntry[index] = maxEntry;
+		if (planCount == 0) {
+			firstEntry = 0.0;
+		}
+		planCount++;
+	}
+
+	/**
+	 * Work out the entry speed of each move in the planner, coming to a stop at
+	 * the end of the last one.
+	 * @param clear empty the planner afterwards
+	 * @return the time the moves in the planner take, in millis
+	 */
+	private double plan(boolean clear) {
+		if (planCount == 0) {
+			return 0.0;
+		}
+		// Backwards, the fastest each move can start and still slow down in time.
+		double exit = 0.0;
+		for (int k = planCount - 1; k > 0; k--) {
+			int i = (planFirst + k) % LOOKAHEAD;
+			exit = Math.min(planMaxEntry[i], Math.sqrt(exit * exit + 2.0 * planAcceleration[i] * planLength[i]));
+			planEntry[i] = exit;
+		}
+		planEntry[planFirst] = firstEntry;
+		// Forwards, the fastest each move can get to from the last.
+		double millis = 0.0;
+		for (int k = 0; k < planCount; k++) {
+			int i = (planFirst + k) % LOOKAHEAD;
+			double entry = planEntry[i];
+			double exitSpeed = 0.0;
+			if (k + 1 < planCount) {
+				int next = (i + 1) % LOOKAHEAD;
+				exitSpeed = Math.min(planEntry[next], Math.sqrt(entry * entry + 2.0 * planAcceleration[i] * planLength[i]));
+				planEntry[next] = exitSpeed;
+			}
+			millis += 1000.0 * getMoveTime(i, entry, exitSpeed);
+		}
+		if (clear) {
+			planCount = 0;
+			moving = false;
+		}
+		return millis;
+	}
+
+	// Move everything out of the planner, with the machine stopping after it.
+	private void flushPlanner() {
+		buildTime += plan(true);
+	}
+
+	// The time a move in the planner takes in seconds, given its entry and exit speeds.
+	private double getMoveTime(int i, double entry, double exit) {
+		double length = planLength[i];
+		double speed = planSpeed[i];
+		double acceleration = planAcceleration[i];
+		if (Double.isInfinite(acceleration)) {
+			return length / speed;
+		}
+		entry = Math.min(entry, speed);
+		exit = Math.min(exit, speed);
+		double accelerating = (speed * speed - entry * entry) / (2.0 * acceleration);
+		double decelerating = (speed * speed - exit * exit) / (2.0 * acceleration);
+		if (accelerating + decelerating <= length) {
+			// Trapezoid: up to full speed, along, and down again.
+			return (speed - entry) / acceleration + (speed - exit) / acceleration
+					+ (length - accelerating - decelerating) / speed;
+		}
+		// Triangle: full speed is never reached.
+		double peak = Math.sqrt((2.0 * acceleration * length + entry * entry + exit * exit) / 2.0);
+		return (peak - entry) / acceleration + (peak - exit) / acceleration;
 	}
 
 	static public String getBuildTimeString(double tempTime) {
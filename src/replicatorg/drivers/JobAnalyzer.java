@@ -0,0 +1,231 @@
+package replicatorg.drivers;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+
+import replicatorg.app.GCode;
+import replicatorg.app.GCodeParser;
+import replicatorg.app.ParallelTokenizer;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.model.GCodeSource;
+import replicatorg.util.Point5d;
+
+/**
+ * Goes through a job once, as the estimator does, and reports on it: the 3D
+ * bounds, how far and how fast in steps each axis moves, how many commands
+ * of each kind go to the machine, the time taken by each Z layer, and the moves
+ * too short for any axis to take a step.
+ *
+ * A layer starts with the first XY move at a new Z. The report is written as
+ * JSON lines: one line per layer as it finishes, then a summary line. Nothing
+ * is kept of the job itself, so any length of job can be analyzed.
+ * @author kshoji
+ *
+ */
+public class JobAnalyzer extends EstimationDriver {
+	private static final int AXES = 5;
+	private static final String[] AXIS_NAMES = { "x", "y", "z", "a", "b" };
+
+	private final Writer out;
+
+	private int lines = 0;
+	private int commands = 0;
+	// Driver commands by kind (not machine packets); there are only a few dozen kinds.
+	private final Map<String, int[]> commandsByKind = new LinkedHashMap<String, int[]>();
+
+	private int moves = 0;
+	private int subStepMoves = 0;
+	private final double[] min = new double[3];
+	private final double[] max = new double[3];
+	private final double[] travel = new double[AXES];
+	// in steps per second
+	private final double[] peakStepRate = new double[AXES];
+
+	private int layer = 0;
+	private double layerZ = 0.0;
+	private double layerStart = 0.0;
+	private int layerMoves = 0;
+
+	private final Point5d from = new Point5d();
+	private final double[] moved = new double[AXES];
+
+	// Set by a failed write, which the driver calls can't throw.
+	private IOException writeError = null;
+
+	public JobAnalyzer(MachineModel model, Writer out) {
+		this.out = out;
+		setMachine(model);
+		for (int i = 0; i < 3; i++) {
+			min[i] = Double.POSITIVE_INFINITY;
+			max[i] = Double.NEGATIVE_INFINITY;
+		}
+	}
+
+	/**
+	 * Analyze the whole job, writing the report as it goes.
+	 * @return false if the analysis was cancelled before the end, leaving the report without a summary
+	 */
+	public boolean analyze(GCodeSource source) throws IOException {
+		GCodeParser parser = new GCodeParser();
+		parser.init(this);
+		Queue<DriverCommand> queue = new LinkedList<DriverCommand>();
+
+		for (GCode code : new ParallelTokenizer(source)) {
+			if ((++lines & 0x3ff) == 0 && isCancelled()) {
+				out.flush();
+				return false;
+			}
+			parser.parse(code, queue);
+			for (DriverCommand command : queue) {
+				count(command);
+				try {
+					command.run(this);
+				} catch (RetryException r) {
+					// Ignore, as when estimating.
+				} catch (StopException e) {
+					// Ignore, as when estimating.
+				}
+			}
+			queue.clear();
+			if (writeError != null) {
+				throw writeError;
+			}
+		}
+		finish();
+		return true;
+	}
+
+	/**
+	 * Checked every so often while analyzing; override to give up on a job that is no longer wanted.
+	 */
+	protected boolean isCancelled() {
+		return false;
+	}
+
+	private void count(DriverCommand command) {
+		commands++;
+		String kind = command.getClass().getSimpleName();
+		int[] count = commandsByKind.get(kind);
+		if (count == null) {
+			count = new int[1];
+			commandsByKind.put(kind, count);
+		}
+		count[0]++;
+	}
+
+	@Override
+	public void queuePoint(Point5d p) throws RetryException {
+		getCurrentPosition(from);
+		boolean anyStep = false;
+		boolean any = false;
+		Point5d stepsPerMM = getMachine().getStepsPerMM();
+		for (int i = 0; i < AXES; i++) {
+			moved[i] = Math.abs(p.get(i) - from.get(i));
+			any |= moved[i] > 0;
+			anyStep |= moved[i] * stepsPerMM.get(i) >= 1.0;
+		}
+
+		if (moved[0] > 0 || moved[1] > 0) {
+			if (layer == 0 || p.z() != layerZ) {
+				endLayer();
+				layer++;
+				layerZ = p.z();
+				layerStart = getBuildTime();
+			}
+		}
+
+		super.queuePoint(p);
+
+		moves++;
+		layerMoves++;
+		if (any && !anyStep) {
+			subStepMoves++;
+		}
+		for (int i = 0; i < 3; i++) {
+			min[i] = Math.min(min[i], p.get(i));
+			max[i] = Math.max(max[i], p.get(i));
+		}
+
+		double length = 0.0;
+		for (int i = 0; i < AXES; i++) {
+			travel[i] += moved[i];
+			length += moved[i] * moved[i];
+		}
+		if (length > 0) {
+			// Each axis moves at the feedrate times its share of the move, as in getSafeFeedrate().
+			double speed = getMoveFeedrate() / 60.0 / Math.sqrt(length);
+			for (int i = 0; i < AXES; i++) {
+				peakStepRate[i] = Math.max(peakStepRate[i], moved[i] * speed * stepsPerMM.get(i));
+			}
+		}
+	}
+
+	private void endLayer() {
+		if (layer == 0) {
+			return;
+		}
+		write(String.format(Locale.US, "{\"layer\":%d,\"z\":%.4f,\"moves\":%d,\"time_ms\":%.1f}\n",
+				layer, layerZ, layerMoves, getBuildTime() - layerStart));
+		layerMoves = 0;
+	}
+
+	// Write the last layer and the summary.
+	private void finish() throws IOException {
+		endLayer();
+
+		StringBuilder summary = new StringBuilder();
+		summary.append(String.format(Locale.US, "{\"summary\":{\"lines\":%d,\"commands\":%d,\"moves\":%d,\"substep_moves\":%d,\"layers\":%d,\"time_ms\":%.1f",
+				lines, commands, moves, subStepMoves, layer, getBuildTime()));
+		summary.append(",\"commands_by_kind\":{");
+		boolean first = true;
+		for (Map.Entry<String, int[]> entry : commandsByKind.entrySet()) {
+			if (!first) {
+				summary.append(',');
+			}
+			first = false;
+			summary.append('"').append(entry.getKey()).append("\":").append(entry.getValue()[0]);
+		}
+		summary.append('}');
+		if (moves > 0) {
+			summary.append(String.format(Locale.US, ",\"bounds\":{\"min\":[%.4f,%.4f,%.4f],\"max\":[%.4f,%.4f,%.4f]}",
+					min[0], min[1], min[2], max[0], max[1], max[2]));
+		}
+		appendAxes(summary, "travel_mm", travel);
+		appendAxes(summary, "peak_steps_per_second", peakStepRate);
+		summary.append("}}\n");
+		write(summary.toString());
+
+		out.flush();
+		if (writeError != null) {
+			throw writeError;
+		}
+	}
+
+	private static void appendAxes(StringBuilder summary, String name, double[] values) {
+		summary.append(",\"").append(name).append("\":{");
+		for (int i = 0; i < AXES; i++) {
+			if (i > 0) {
+				summary.append(',');
+			}
+			summary.append(String.format(Locale.US, "\"%s\":%.4f", AXIS_NAMES[i], values[i]));
+		}
+		summary.append('}');
+	}
+
+	private void write(String s) {
+		if (writeError != null) {
+			return;
+		}
+		try {
+			out.write(s);
+		} catch (IOException e) {
+			writeError = e;
+		}
+	}
+}
@@ -0,0 +1,424 @@
+package replicatorg.drivers.commands;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.EnumSet;
+
+import replicatorg.drivers.commands.DriverCommand.AxialDirection;
+import replicatorg.drivers.commands.DriverCommand.LinearDirection;
+import replicatorg.machine.model.AxisId;
+import replicatorg.util.Point5d;
+
+/**
+ * Writes driver commands as an opcode byte followed by their operands, and
+ * reads them back, for compiled jobs.
+ *
+ * The points of QueuePoint, QueueArc and SetCurrentPosition may have axes stored relative
+ * to the machine's position at the last SYNC, for jobs that move relative to
+ * wherever homing left the machine; those axes are resolved when the command
+ * is read.
+ */
+public class CommandCodec {
+	/** Supplies the machine's position at the last SYNC. */
+	public interface Origin {
+		public Point5d getOrigin();
+	}
+
+	// Markers written between commands by the job compiler.
+	public static final int LINE_END = 0;
+	public static final int SYNC = 1;
+	public static final int JOB_END = 2;
+
+	static final int ASSESS_STATE = 16;
+	static final int CHANGE_GEAR_RATIO = 17;
+	static final int CLOSE_CLAMP = 18;
+	static final int CLOSE_COLLET = 19;
+	static final int CLOSE_VALVE = 20;
+	static final int DELAY = 21;
+	static final int DISABLE_DRIVES = 22;
+	static final int DISABLE_FAN = 23;
+	static final int DISABLE_FLOOD_COOLANT = 24;
+	static final int DISABLE_MIST_COOLANT = 25;
+	static final int DISABLE_MOTOR = 26;
+	static final int DISABLE_SPINDLE = 27;
+	static final int ENABLE_DRIVES = 28;
+	static final int ENABLE_FAN = 29;
+	static final int ENABLE_FLOOD_COOLANT = 30;
+	static final int ENABLE_MIST_COOLANT = 31;
+	static final int ENABLE_MOTOR = 32;
+	static final int ENABLE_SPINDLE = 33;
+	static final int GCODE_PASSTHROUGH = 34;
+	static final int GET_POSITION = 35;
+	static final int HOME_AXES = 36;
+	static final int INITIALIZE = 37;
+	static final int OPEN_CLAMP = 38;
+	static final int OPEN_COLLET = 39;
+	static final int OPEN_VALVE = 40;
+	static final int OPTIONAL_HALT = 41;
+	static final int PROGRAM_END = 42;
+	static final int PROGRAM_REWIND = 43;
+	static final int QUEUE_POINT = 44;
+	static final int QUEUE_RELATIVE_POINT = 45;
+	static final int RECALL_HOME_POSITIONS = 46;
+	static final int REQUEST_TOOL_CHANGE = 47;
+	static final int SELECT_TOOL = 48;
+	static final int SET_AXIS_OFFSET = 49;
+	static final int SET_CURRENT_POSITION = 50;
+	static final int SET_FEEDRATE = 51;
+	static final int SET_MOTOR_DIRECTION = 52;
+	static final int SET_MOTOR_SPEED_PWM = 53;
+	static final int SET_MOTOR_SPEED_RPM = 54;
+	static final int SET_SPINDLE_DIRECTION = 55;
+	static final int SET_SPINDLE_RPM = 56;
+	static final int STORE_HOME_POSITIONS = 57;
+	static final int UNCONDITIONAL_HALT = 58;
+	static final int WAIT_UNTIL_BUFFER_EMPTY = 59;
+	static final int QUEUE_ARC = 60;
+
+	private static final int AXES = 5;
+
+	/**
+	 * True for commands after which the machine, rather than the gcode, decides
+	 * where it is (or what its offsets are), so a parser working ahead of the
+	 * machine has to wait for it.
+	 */
+	public static boolean isPositionBarrier(DriverCommand command) {
+		return command instanceof HomeAxes
+				|| command instanceof RecallHomePositions
+				|| command instanceof GetPosition
+				|| command instanceof Initialize
+				|| command instanceof SetAxisOffset;
+	}
+
+	/**
+	 * @return the point of a QueuePoint, QueueArc or SetCurrentPosition, or null for other commands
+	 */
+	public static Point5d getPoint(DriverCommand command) {
+		if (command instanceof QueuePoint) {
+			return ((QueuePoint) command).destination;
+		}
+		if (command instanceof QueueArc) {
+			return ((QueueArc) command).destination;
+		}
+		if (command instanceof SetCurrentPosition) {
+			return ((SetCurrentPosition) command).point;
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if the command moves the machine to its point
+	 */
+	public static boolean isMove(DriverCommand command) {
+		return command instanceof QueuePoint || command instanceof QueueArc;
+	}
+
+	/**
+	 * @param relativeAxes bit i is set if axis i of the command's point is stored relative to the origin
+	 * @throws IOException if the command can't be written
+	 */
+	public static void write(DataOutput out, DriverCommand command, int relativeAxes) throws IOException {
+		if (command instanceof QueuePoint) {
+			out.writeByte(QUEUE_POINT);
+			writePoint(out, ((QueuePoint) command).destination, relativeAxes);
+		} else if (command instanceof QueueArc) {
+			// The center is stored as an offset from the start, so it needs no resolving.
+			QueueArc arc = (QueueArc) command;
+			out.writeByte(QUEUE_ARC);
+			writePoint(out, arc.destination, relativeAxes);
+			out.writeDouble(arc.centerX);
+			out.writeDouble(arc.centerY);
+			out.writeBoolean(arc.clockwise);
+			out.writeDouble(arc.chordError);
+		} else if (command instanceof SetFeedrate) {
+			out.writeByte(SET_FEEDRATE);
+			out.writeDouble(((SetFeedrate) command).feedrate);
+		} else if (command instanceof QueueRelativePoint) {
+			QueueRelativePoint move = (QueueRelativePoint) command;
+			out.writeByte(QUEUE_RELATIVE_POINT);
+			writePoint(out, move.delta, 0);
+			out.writeDouble(move.feedrate);
+		} else if (command instanceof SetCurrentPosition) {
+			out.writeByte(SET_CURRENT_POSITION);
+			writePoint(out, ((SetCurrentPosition) command).point, relativeAxes);
+		} else if (command instanceof Delay) {
+			out.writeByte(DELAY);
+			out.writeLong(((Delay) command).delay);
+		} else if (command instanceof WaitUntilBufferEmpty) {
+			out.writeByte(WAIT_UNTIL_BUFFER_EMPTY);
+		} else if (command instanceof HomeAxes) {
+			HomeAxes home = (HomeAxes) command;
+			out.writeByte(HOME_AXES);
+			out.writeShort(axesToBits(home.axes));
+			out.writeByte(home.direction.ordinal());
+			out.writeDouble(home.feedrate);
+		} else if (command instanceof RecallHomePositions) {
+			out.writeByte(RECALL_HOME_POSITIONS);
+			out.writeShort(axesToBits(((RecallHomePositions) command).axes));
+		} else if (command instanceof StoreHomePositions) {
+			out.writeByte(STORE_HOME_POSITIONS);
+			out.writeShort(axesToBits(((StoreHomePositions) command).axes));
+		} else if (command instanceof SetAxisOffset) {
+			SetAxisOffset offset = (SetAxisOffset) command;
+			out.writeByte(SET_AXIS_OFFSET);
+			out.writeByte(offset.axis.ordinal());
+			out.writeInt(offset.offsetId);
+			out.writeDouble(offset.offset);
+		} else if (command instanceof SetMotorDirection) {
+			out.writeByte(SET_MOTOR_DIRECTION);
+			out.writeByte(((SetMotorDirection) command).direction.ordinal());
+		} else if (command instanceof SetSpindleDirection) {
+			out.writeByte(SET_SPINDLE_DIRECTION);
+			out.writeByte(((SetSpindleDirection) command).direction.ordinal());
+		} else if (command instanceof SetMotorSpeedPWM) {
+			out.writeByte(SET_MOTOR_SPEED_PWM);
+			out.writeInt(((SetMotorSpeedPWM) command).pwm);
+		} else if (command instanceof SetMotorSpeedRPM) {
+			out.writeByte(SET_MOTOR_SPEED_RPM);
+			out.writeDouble(((SetMotorSpeedRPM) command).rpm);
+		} else if (command instanceof SetSpindleRPM) {
+			out.writeByte(SET_SPINDLE_RPM);
+			out.writeDouble(((SetSpindleRPM) command).rpm);
+		} else if (command instanceof SelectTool) {
+			out.writeByte(SELECT_TOOL);
+			out.writeInt(((SelectTool) command).toolNumber);
+		} else if (command instanceof RequestToolChange) {
+			RequestToolChange change = (RequestToolChange) command;
+			out.writeByte(REQUEST_TOOL_CHANGE);
+			out.writeInt(change.toolIndex);
+			out.writeInt(change.timeout);
+		} else if (command instanceof ChangeGearRatio) {
+			out.writeByte(CHANGE_GEAR_RATIO);
+			out.writeInt(((ChangeGearRatio) command).gearRatio);
+		} else if (command instanceof OpenClamp) {
+			out.writeByte(OPEN_CLAMP);
+			out.writeInt(((OpenClamp) command).clampIndex);
+		} else if (command instanceof CloseClamp) {
+			out.writeByte(CLOSE_CLAMP);
+			out.writeInt(((CloseClamp) command).clampIndex);
+		} else if (command instanceof GCodePassthrough) {
+			out.writeByte(GCODE_PASSTHROUGH);
+			writeString(out, ((GCodePassthrough) command).command);
+		} else if (command instanceof OptionalHalt) {
+			out.writeByte(OPTIONAL_HALT);
+			writeString(out, ((OptionalHalt) command).message);
+		} else if (command instanceof UnconditionalHalt) {
+			out.writeByte(UNCONDITIONAL_HALT);
+			writeString(out, ((UnconditionalHalt) command).message);
+		} else if (command instanceof ProgramEnd) {
+			out.writeByte(PROGRAM_END);
+			writeString(out, ((ProgramEnd) command).message);
+		} else if (command instanceof ProgramRewind) {
+			out.writeByte(PROGRAM_REWIND);
+			writeString(out, ((ProgramRewind) command).message);
+		} else if (command instanceof AssessState) {
+			out.writeByte(ASSESS_STATE);
+		} else if (command instanceof CloseCollet) {
+			out.writeByte(CLOSE_COLLET);
+		} else if (command instanceof CloseValve) {
+			out.writeByte(CLOSE_VALVE);
+		} else if (command instanceof DisableDrives) {
+			out.writeByte(DISABLE_DRIVES);
+		} else if (command instanceof DisableFan) {
+			out.writeByte(DISABLE_FAN);
+		} else if (command instanceof DisableFloodCoolant) {
+			out.writeByte(DISABLE_FLOOD_COOLANT);
+		} else if (command instanceof DisableMistCoolant) {
+			out.writeByte(DISABLE_MIST_COOLANT);
+		} else if (command instanceof DisableMotor) {
+			out.writeByte(DISABLE_MOTOR);
+		} else if (command instanceof DisableSpindle) {
+			out.writeByte(DISABLE_SPINDLE);
+		} else if (command instanceof EnableDrives) {
+			out.writeByte(ENABLE_DRIVES);
+		} else if (command instanceof EnableFan) {
+			out.writeByte(ENABLE_FAN);
+		} else if (command instanceof EnableFloodCoolant) {
+			out.writeByte(ENABLE_FLOOD_COOLANT);
+		} else if (command instanceof EnableMistCoolant) {
+			out.writeByte(ENABLE_MIST_COOLANT);
+		} else if (command instanceof EnableMotor) {
+			out.writeByte(ENABLE_MOTOR);
+		} else if (command instanceof EnableSpindle) {
+			out.writeByte(ENABLE_SPINDLE);
+		} else if (command instanceof GetPosition) {
+			out.writeByte(GET_POSITION);
+		} else if (command instanceof Initialize) {
+			out.writeByte(INITIALIZE);
+		} else if (command instanceof OpenCollet) {
+			out.writeByte(OPEN_COLLET);
+		} else if (command instanceof OpenValve) {
+			out.writeByte(OPEN_VALVE);
+		} else {
+			throw new IOException("Can't compile " + command.getClass().getSimpleName());
+		}
+	}
+
+	/**
+	 * Read the operands of a command whose opcode has already been read.
+	 * @param origin used when the command has axes stored relative to the origin
+	 */
+	public static DriverCommand read(DataInput in, int opcode, Origin origin) throws IOException {
+		switch (opcode) {
+		case QUEUE_POINT:
+			return new QueuePoint(readPoint(in, origin));
+		case QUEUE_ARC:
+		{
+			Point5d destination = readPoint(in, origin);
+			double centerX = in.readDouble();
+			double centerY = in.readDouble();
+			boolean clockwise = in.readBoolean();
+			return new QueueArc(destination, centerX, centerY, clockwise, in.readDouble());
+		}
+		case SET_FEEDRATE:
+			return new SetFeedrate(in.readDouble());
+		case QUEUE_RELATIVE_POINT:
+		{
+			Point5d delta = readPoint(in, origin);
+			return new QueueRelativePoint(delta, in.readDouble());
+		}
+		case SET_CURRENT_POSITION:
+			return new SetCurrentPosition(readPoint(in, origin));
+		case DELAY:
+			return new Delay(in.readLong());
+		case WAIT_UNTIL_BUFFER_EMPTY:
+			return new WaitUntilBufferEmpty();
+		case HOME_AXES:
+		{
+			EnumSet<AxisId> axes = bitsToAxes(in.readShort());
+			LinearDirection direction = LinearDirection.values()[in.readByte()];
+			return new HomeAxes(axes, direction, in.readDouble());
+		}
+		case RECALL_HOME_POSITIONS:
+			return new RecallHomePositions(bitsToAxes(in.readShort()));
+		case STORE_HOME_POSITIONS:
+			return new StoreHomePositions(bitsToAxes(in.readShort()));
+		case SET_AXIS_OFFSET:
+		{
+			AxisId axis = AxisId.values()[in.readByte()];
+			int offsetId = in.readInt();
+			return new SetAxisOffset(axis, offsetId, in.readDouble());
+		}
+		case SET_MOTOR_DIRECTION:
+			return new SetMotorDirection(AxialDirection.values()[in.readByte()]);
+		case SET_SPINDLE_DIRECTION:
+			return new SetSpindleDirection(AxialDirection.values()[in.readByte()]);
+		case SET_MOTOR_SPEED_PWM:
+			return new SetMotorSpeedPWM(in.readInt());
+		case SET_MOTOR_SPEED_RPM:
+			return new SetMotorSpeedRPM(in.readDouble());
+		case SET_SPINDLE_RPM:
+			return new SetSpindleRPM(in.readDouble());
+		case SELECT_TOOL:
+			return new SelectTool(in.readInt());
+		case REQUEST_TOOL_CHANGE:
+		{
+			int toolIndex = in.readInt();
+			return new RequestToolChange(toolIndex, in.readInt());
+		}
+		case CHANGE_GEAR_RATIO:
+			return new ChangeGearRatio(in.readInt());
+		case OPEN_CLAMP:
+			return new OpenClamp(in.readInt());
+		case CLOSE_CLAMP:
+			return new CloseClamp(in.readInt());
+		case GCODE_PASSTHROUGH:
+			return new GCodePassthrough(in.readUTF());
+		case OPTIONAL_HALT:
+			return new OptionalHalt(in.readUTF());
+		case UNCONDITIONAL_HALT:
+			return new UnconditionalHalt(in.readUTF());
+		case PROGRAM_END:
+			return new ProgramEnd(in.readUTF());
+		case PROGRAM_REWIND:
+			return new ProgramRewind(in.readUTF());
+		case ASSESS_STATE:
+			return new AssessState();
+		case CLOSE_COLLET:
+			return new CloseCollet();
+		case CLOSE_VALVE:
+			return new CloseValve();
+		case DISABLE_DRIVES:
+			return new DisableDrives();
+		case DISABLE_FAN:
+			return new DisableFan();
+		case DISABLE_FLOOD_COOLANT:
+			return new DisableFloodCoolant();
+		case DISABLE_MIST_COOLANT:
+			return new DisableMistCoolant();
+		case DISABLE_MOTOR:
+			return new DisableMotor();
+		case DISABLE_SPINDLE:
+			return new DisableSpindle();
+		case ENABLE_DRIVES:
+			return new EnableDrives();
+		case ENABLE_FAN:
+			return new EnableFan();
+		case ENABLE_FLOOD_COOLANT:
+			return new EnableFloodCoolant();
+		case ENABLE_MIST_COOLANT:
+			return new EnableMistCoolant();
+		case ENABLE_MOTOR:
+			return new EnableMotor();
+		case ENABLE_SPINDLE:
+			return new EnableSpindle();
+		case GET_POSITION:
+			return new GetPosition();
+		case INITIALIZE:
+			return new Initialize();
+		case OPEN_COLLET:
+			return new OpenCollet();
+		case OPEN_VALVE:
+			return new OpenValve();
+		default:
+			throw new IOException("Unknown opcode " + opcode);
+		}
+	}
+
+	private static void writePoint(DataOutput out, Point5d point, int relativeAxes) throws IOException {
+		out.writeByte(relativeAxes);
+		for (int axis = 0; axis < AXES; axis++) {
+			out.writeDouble(point.get(axis));
+		}
+	}
+
+	private static Point5d readPoint(DataInput in, Origin origin) throws IOException {
+		int relativeAxes = in.readByte();
+		Point5d point = new Point5d();
+		for (int axis = 0; axis < AXES; axis++) {
+			point.set(axis, in.readDouble());
+		}
+		if (relativeAxes != 0) {
+			Point5d from = origin.getOrigin();
+			for (int axis = 0; axis < AXES; axis++) {
+				if ((relativeAxes & (1 << axis)) != 0) {
+					point.set(axis, point.get(axis) + from.get(axis));
+				}
+			}
+		}
+		return point;
+	}
+
+	private static void writeString(DataOutput out, String s) throws IOException {
+		out.writeUTF(s == null ? "" : s);
+	}
+
+	private static int axesToBits(EnumSet<AxisId> axes) {
+		int bits = 0;
+		for (AxisId axis : axes) {
+			bits |= 1 << axis.ordinal();
+		}
+		return bits;
+	}
+
+	private static EnumSet<AxisId> bitsToAxes(int bits) {
+		EnumSet<AxisId> axes = EnumSet.noneOf(AxisId.class);
+		for (AxisId axis : AxisId.values()) {
+			if ((bits & (1 << axis.ordinal())) != 0) {
+				axes.add(axis);
+			}
+		}
+		return axes;
+	}
+}
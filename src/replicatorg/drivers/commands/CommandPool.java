@@ -0,0 +1,64 @@
+package replicatorg.drivers.commands;
+
+import replicatorg.util.Point5d;
+
+/**
+ * Recycles the commands that are made for nearly every line of a build (feedrates
+ * and moves), so that parsing a long build does not allocate for each line.
+ * A command may only be recycled once it has been run. Commands may be obtained
+ * and recycled on different threads.
+ */
+public class CommandPool {
+	private static final int MAX_POOLED = 64;
+
+	private final SetFeedrate[] feedrates = new SetFeedrate[MAX_POOLED];
+	private int feedrateCount = 0;
+
+	private final QueuePoint[] points = new QueuePoint[MAX_POOLED];
+	private int pointCount = 0;
+
+	public synchronized SetFeedrate obtainSetFeedrate(double feedrate) {
+		if (feedrateCount == 0) {
+			SetFeedrate command = new SetFeedrate(feedrate);
+			command.pool = this;
+			return command;
+		}
+		SetFeedrate command = feedrates[--feedrateCount];
+		feedrates[feedrateCount] = null;
+		command.feedrate = feedrate;
+		return command;
+	}
+
+	/**
+	 * @param destination copied into the command, so the caller may reuse it
+	 */
+	public synchronized QueuePoint obtainQueuePoint(Point5d destination) {
+		if (pointCount == 0) {
+			QueuePoint command = new QueuePoint(new Point5d(destination));
+			command.pool = this;
+			return command;
+		}
+		QueuePoint command = points[--pointCount];
+		points[pointCount] = null;
+		command.destination.set(destination);
+		return command;
+	}
+
+	/**
+	 * Return a command that has been run. Commands that did not come from this
+	 * pool are ignored.
+	 */
+	public synchronized void recycle(DriverCommand command) {
+		if (command instanceof QueuePoint) {
+			QueuePoint point = (QueuePoint) command;
+			if (point.pool == this && pointCount < MAX_POOLED) {
+				points[pointCount++] = point;
+			}
+		} else if (command instanceof SetFeedrate) {
+			SetFeedrate feedrate = (SetFeedrate) command;
+			if (feedrate.pool == this && feedrateCount < MAX_POOLED) {
+				feedrates[feedrateCount++] = feedrate;
+			}
+		}
+	}
+}
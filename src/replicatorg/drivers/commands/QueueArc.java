@@ -0,0 +1,112 @@
+package replicatorg.drivers.commands;
+
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.RetryException;
+import replicatorg.util.Point5d;
+
+/**
+ * Move along an arc in the XY plane, from wherever the driver currently is to
+ * the given destination, around a center given as an offset from the start.
+ * Z, A and B move in proportion along the way.
+ *
+ * The arc is queued as straight segments, each worked out just before it is
+ * queued, so a large arc takes no more memory than a small one. The segments
+ * are as long as they can be without straying more than the chord error from
+ * the true arc. If the driver asks for a retry, the arc carries on from the
+ * segment that failed.
+ */
+public class QueueArc implements DriverCommand {
+
+	// At least this many segments per radian, so that small arcs keep their shape.
+	private static final double MIN_SEGMENTS_PER_RADIAN = 2.4;
+
+	Point5d destination;
+	double centerX;
+	double centerY;
+	boolean clockwise;
+	double chordError;
+
+	// Worked out when the arc starts.
+	private Point5d start = null;
+	private double startAngle;
+	private double sweep;
+	private double radius;
+	private int segments;
+
+	// The next segment to queue, from 1 to segments.
+	private int segment = 1;
+	private final Point5d point = new Point5d();
+
+	/**
+	 * @param destination where the arc ends, in mm
+	 * @param centerX X offset of the center from the start, in mm
+	 * @param centerY Y offset of the center from the start, in mm
+	 * @param chordError the furthest a segment may be from the arc, in mm
+	 */
+	public QueueArc(Point5d destination, double centerX, double centerY, boolean clockwise, double chordError) {
+		this.destination = new Point5d(destination);
+		this.centerX = centerX;
+		this.centerY = centerY;
+		this.clockwise = clockwise;
+		this.chordError = chordError;
+	}
+
+	public Point5d getDestination() {
+		return destination;
+	}
+
+	/**
+	 * @return the number of segments between start and destination, for an arc
+	 * of the given radius and angle in radians
+	 */
+	public static int getSegmentCount(double radius, double sweep, double chordError) {
+		// A chord across the angle t strays radius * (1 - cos(t/2)) from the arc.
+		double maxAngle = 1.0 / MIN_SEGMENTS_PER_RADIAN;
+		if (chordError < radius) {
+			maxAngle = Math.min(maxAngle, 2.0 * Math.acos(1.0 - chordError / radius));
+		}
+		return Math.max(1, (int) Math.ceil(sweep / maxAngle));
+	}
+
+	private void begin(Driver driver) {
+		start = new Point5d(driver.getCurrentPosition(false));
+
+		double cX = start.x() + centerX;
+		double cY = start.y() + centerY;
+		startAngle = Math.atan2(start.y() - cY, start.x() - cX);
+		double endAngle = Math.atan2(destination.y() - cY, destination.x() - cX);
+
+		// A start and end in the same place make a full circle.
+		sweep = clockwise ? startAngle - endAngle : endAngle - startAngle;
+		if (sweep <= 0) {
+			sweep += 2 * Math.PI;
+		}
+		radius = Math.sqrt(centerX * centerX + centerY * centerY);
+		segments = getSegmentCount(radius, sweep, chordError);
+	}
+
+	@Override
+	public void run(Driver driver) throws RetryException {
+		if (start == null) {
+			begin(driver);
+		}
+
+		double cX = start.x() + centerX;
+		double cY = start.y() + centerY;
+		for (; segment < segments; segment++) {
+			double fraction = (double) segment / segments;
+			double angle = startAngle + (clockwise ? -sweep : sweep) * fraction;
+			point.setX(cX + radius * Math.cos(angle));
+			point.setY(cY + radius * Math.sin(angle));
+			point.setZ(start.z() + (destination.z() - start.z()) * fraction);
+			point.setA(start.a() + (destination.a() - start.a()) * fraction);
+			point.setB(start.b() + (destination.b() - start.b()) * fraction);
+			driver.queuePoint(point);
+		}
+		// The last segment ends exactly on the destination.
+		if (segment == segments) {
+			driver.queuePoint(destination);
+			segment++;
+		}
+	}
+}
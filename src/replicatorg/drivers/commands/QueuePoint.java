@@ -6,11 +6,17 @@ import replicatorg.util.Point5d;
 
 public class QueuePoint implements DriverCommand {
 	Point5d destination;
+	// set when the command belongs to a CommandPool
+	CommandPool pool = null;
 
 	public QueuePoint(Point5d destination) {
 		this.destination = destination;
 	}
 	
+	public Point5d getDestination() {
+		return destination;
+	}
+
 	@Override
 	public void run(Driver driver) throws RetryException {
 		driver.queuePoint(destination);
@@ -0,0 +1,35 @@
+package replicatorg.drivers.commands;
+
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.RetryException;
+import replicatorg.util.Point5d;
+
+/**
+ * Move by the given delta from wherever the driver currently is, at the given
+ * feedrate. This is the typed equivalent of "G91" followed by "G1 ... F...",
+ * without going through the gcode parser.
+ */
+public class QueueRelativePoint implements DriverCommand {
+
+	Point5d delta;
+	double feedrate;
+
+	/**
+	 * @param delta The distance to move, in mm.
+	 * @param feedrate The feedrate, in mm/minute.
+	 */
+	public QueueRelativePoint(Point5d delta, double feedrate) {
+		this.delta = delta;
+		this.feedrate = feedrate;
+	}
+	
+	@Override
+	public void run(Driver driver) throws RetryException {
+		driver.setFeedrate(feedrate);
+		
+		// The target is computed at run time, so a retry moves from the same place.
+		Point5d destination = driver.getCurrentPosition(false);
+		destination.add(delta);
+		driver.queuePoint(destination);
+	}
+}
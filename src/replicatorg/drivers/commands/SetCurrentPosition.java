@@ -12,6 +12,10 @@ public class SetCurrentPosition implements DriverCommand {
 		this.point = point;
 	}
 	
+	public Point5d getPoint() {
+		return point;
+	}
+
 	@Override
 	public void run(Driver driver) throws RetryException {
 		driver.setCurrentPosition(point);
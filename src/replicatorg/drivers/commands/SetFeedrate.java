@@ -6,6 +6,8 @@ import replicatorg.drivers.RetryException;
 public class SetFeedrate implements DriverCommand {
 
 	double feedrate;
+	// set when the command belongs to a CommandPool
+	CommandPool pool = null;
 	
 	public SetFeedrate(double feedrate) {
 		this.feedrate = feedrate;
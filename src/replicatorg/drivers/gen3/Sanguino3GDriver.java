@@ -176,6 +176,10 @@ public class Sanguino3GDriver extends SerialDriver
 	 * Sends the command over the serial connection and retrieves a result.
 	 */
 	protected PacketResponse runCommand(byte[] packet) throws RetryException {
+		// Leave the way clear for a stop.
+		if (isStopRequested()) {
+			throw new RetryException();
+		}
 		return runCommand(packet,DEFAULT_RETRIES);
 	}
 
@@ -283,6 +287,10 @@ public class Sanguino3GDriver extends SerialDriver
 					if (Thread.currentThread().isInterrupted()) {
 						break;
 					}
+					if (isStopRequested()) {
+						// Don't spend any more timeouts on a packet that is being stopped anyway.
+						return PacketResponse.timeoutResponse();
+					}
 					if (retries > 1) {
 						Base.logger.severe("Read timed out; retries remaining: "+Integer.toString(retries));
 					}
@@ -299,6 +307,9 @@ public class Sanguino3GDriver extends SerialDriver
 					completed = pp.processByte((byte) b);
 				} catch (CRCException e) {
 					Base.logger.severe("Bad CRC received; retries remaining: "+Integer.toString(retries));
+					if (isStopRequested()) {
+						return PacketResponse.timeoutResponse();
+					}
 					return runCommand(packet,retries-1);
 				}
 			}
@@ -312,7 +323,7 @@ public class Sanguino3GDriver extends SerialDriver
 			else {
 				// Other random error
 				printDebugData("Unknown error sending, retry",packet);
-				if (retries > 1) {
+				if (retries > 1 && !isStopRequested()) {
 					return runCommand(packet,retries-1);
 				}
 			}
@@ -1297,6 +1308,11 @@ public class Sanguino3GDriver extends SerialDriver
 	 * Stop and system state reset
 	 **************************************************************************/
 	final private Version extendedStopVersion = new Version(2,7);
+
+	/** Older firmware can only abort, which also stops the toolhead and forgets the build. */
+	public boolean hasSoftStop() {
+		return hasSoftStop && version.atLeast(extendedStopVersion);
+	}
 	
 	public void stop(boolean abort) {
 		PacketBuilder pb;
@@ -1323,6 +1339,10 @@ public class Sanguino3GDriver extends SerialDriver
 		}
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.GET_POSITION.getCode());
 		PacketResponse pr = runCommand(pb.getPacket());
+		if (!pr.isOK()) {
+			// Leave the position lost, rather than take the empty response for the origin.
+			return null;
+		}
 		Point5d steps = new Point5d(pr.get32(), pr.get32(), pr.get32(), 0, 0);
 		// Useful quickie debugs
 //		System.err.println("Reconciling : "+machine.stepsToMM(steps).toString());
@@ -19,22 +19,40 @@
 
 package replicatorg.machine;
 
+import java.awt.geom.Rectangle2D;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.w3c.dom.Node;
 
 import replicatorg.app.Base;
+import replicatorg.app.GCode;
 import replicatorg.app.GCodeParser;
+import replicatorg.app.ParallelTokenizer;
 import replicatorg.drivers.Driver;
 import replicatorg.drivers.DriverQueryInterface;
 import replicatorg.drivers.EstimationDriver;
+import replicatorg.drivers.JobAnalyzer;
 import replicatorg.drivers.RetryException;
 import replicatorg.drivers.StopException;
 import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.drivers.commands.QueueRelativePoint;
+import replicatorg.machine.builder.Streaming;
 import replicatorg.machine.model.MachineModel;
 import replicatorg.machine.model.ToolModel;
+import replicatorg.model.CompiledJob;
+import replicatorg.model.EstimateCache;
 import replicatorg.model.GCodeSource;
+import replicatorg.model.JobCompiler;
+import replicatorg.util.Point5d;
 
 /**
  * The MachineController object controls a single machine. It contains a single
@@ -65,6 +83,8 @@ public class Machine implements MachineInterface {
 		// Start a build
 		SIMULATE, // Build to the simulator
 		BUILD_DIRECT, // Build in real time on the machine
+		BUILD_STREAMING, // Build an open-ended stream of commands in real time on the machine
+		BUILD_COMPILED, // Build a compiled job in real time on the machine
 		BUILD_TO_FILE, // Build, but instruct the machine to save it to the
 						// local filesystem
 		BUILD_TO_REMOTE_FILE, // Build, but instruct the machine to save it to
@@ -121,6 +141,19 @@ public class Machine implements MachineInterface {
 	MachineThread machineThread;
 	final MachineCallbackHandler callbackHandler;
 	
+	// The stream most recently started by buildStreaming(), if any.
+	private volatile Streaming stream = null;
+	
+	// Runs build time estimates and job analyses in the background, one at a time.
+	private ExecutorService estimator = null;
+	// Bumped for each new estimate; an estimate that finds it changed gives up.
+	private volatile int estimateGeneration = 0;
+	// XY bounds of the current job from its estimate, null until it is done.
+	private volatile Rectangle2D.Double estimatedBounds = null;
+	
+	// Jobs shorter than this are interactive: they are done before an estimate would help.
+	private static final int MIN_ESTIMATE_LINES = 100;
+	
 	// TODO: WTF is this here for.
 	// this is the xml config for this machine.
 	protected Node machineNode;
@@ -158,9 +191,14 @@ public class Machine implements MachineInterface {
 		// Base.preferences.getBoolean("build.showSimulator",false))
 		// simulator.createWindow();
 
-		// estimate build time.
-		Base.logger.info("Estimating build time...");
-		estimate(source);
+		// estimate build time, without holding up the build.
+		estimateLater(source);
+
+		// analyze the job alongside the build, if asked for.
+		String report = Base.preferences.get("build.analysis_file", "");
+		if (report.length() > 0) {
+			analyze(source, new File(report));
+		}
 
 		// do that build!
 		Base.logger.info("Beginning build.");
@@ -170,14 +208,59 @@ public class Machine implements MachineInterface {
 		return true;
 	}
 
+	public CompiledJob compile(GCodeSource source, File file) throws IOException {
+		Base.logger.info("Compiling job to " + file.getName() + "...");
+		CompiledJob job = JobCompiler.compile(machineThread.buildGCodeJob(source), getModel(), file);
+		Base.logger.info("Estimated build time is: "
+				+ EstimationDriver.getBuildTimeString(job.getEstimatedBuildTime()));
+		return job;
+	}
+
+	public boolean buildCompiled(CompiledJob job) {
+		// The estimate was made when the job was compiled.
+		finishEstimate(newEstimate(), new EstimateCache.Estimate(job.getEstimatedBuildTime(), job.getBounds()));
+
+		Base.logger.info("Beginning build.");
+
+		machineThread.scheduleRequest(new MachineCommand(
+				RequestType.BUILD_COMPILED, job));
+		return true;
+	}
+
+	/**
+	 * Begin an open-ended build that is fed from the returned stream.
+	 */
+	public Streaming buildStreaming(int capacity) {
+		Streaming stream = new Streaming(machineThread.getDriver(), capacity);
+
+		// Nothing to estimate: the stream's contents aren't known yet.
+		newEstimate();
+		Base.logger.info("Beginning stream.");
+
+		this.stream = stream;
+		machineThread.scheduleRequest(new MachineCommand(
+				RequestType.BUILD_STREAMING, stream));
+		return stream;
+	}
+
+	/**
+	 * Queue a relative move on the current stream, without going through gcode.
+	 */
+	public boolean queueRelativeMove(Point5d delta, double feedrate) {
+		Streaming stream = this.stream;
+		if (stream == null) {
+			return false;
+		}
+		return stream.offer(new QueueRelativePoint(delta, feedrate));
+	}
+
 	public void simulate(GCodeSource source) {
 		// start simulator
 		// if (simulator != null)
 		// simulator.createWindow();
 
-		// estimate build time.
-		Base.logger.info("Estimating build time...");
-		estimate(source);
+		// estimate build time, without holding up the simulation.
+		estimateLater(source);
 
 		// do that build!
 		Base.logger.info("Beginning simulation.");
@@ -187,10 +270,146 @@ public class Machine implements MachineInterface {
 
 	// TODO: Spawn a new thread to handle this for us?
 	public void estimate(GCodeSource source) {
+		int generation = newEstimate();
 		if (source == null) {
 			return;
 		}
 
+		// Reading a stream would use it up, and it may never end.
+		if (source.getLineCount() < 0) {
+			Base.logger.info("Job length isn't known, not estimating build time");
+			return;
+		}
+
+		finishEstimate(generation, estimateBuildTime(source, generation));
+	}
+
+	public Rectangle2D.Double getEstimatedBounds() {
+		return estimatedBounds;
+	}
+
+	/**
+	 * Estimate the build time on a background thread. The estimate goes to the
+	 * machine, and out in a progress event, when it is ready; until then, the
+	 * build goes ahead with no estimate. Streams and short interactive jobs
+	 * aren't estimated.
+	 */
+	private void estimateLater(final GCodeSource source) {
+		final int generation = newEstimate();
+		if (source == null) {
+			return;
+		}
+		int lines = source.getLineCount();
+		if (lines < 0) {
+			Base.logger.info("Job length isn't known, not estimating build time");
+			return;
+		}
+		if (lines < MIN_ESTIMATE_LINES) {
+			return;
+		}
+
+		Base.logger.info("Estimating build time...");
+		getEstimator().execute(new Runnable() {
+			public void run() {
+				finishEstimate(generation, estimateBuildTime(source, generation));
+			}
+		});
+	}
+
+	public void analyze(final GCodeSource source, final File report) {
+		if (source == null || source.getLineCount() < 0) {
+			// A stream can only be read once, by the build.
+			return;
+		}
+		// Like an estimate, the analysis gives up once a newer estimate is started.
+		final int generation = estimateGeneration;
+		getEstimator().execute(new Runnable() {
+			public void run() {
+				try {
+					Writer out = new BufferedWriter(new FileWriter(report));
+					boolean finished;
+					try {
+						finished = new JobAnalyzer(machineThread.getModel(), out) {
+							@Override
+							protected boolean isCancelled() {
+								return generation != estimateGeneration;
+							}
+						}.analyze(source);
+					} finally {
+						out.close();
+					}
+					if (!finished) {
+						Base.logger.info("Dropped job analysis for " + report.getPath() + ", a newer job was started");
+						return;
+					}
+					Base.logger.info("Wrote job analysis to " + report.getPath());
+				} catch (IOException e) {
+					Base.logger.warning("Couldn't write job analysis to " + report.getPath() + ": " + e.getMessage());
+				}
+			}
+		});
+	}
+
+	private synchronized ExecutorService getEstimator() {
+		if (estimator == null) {
+			estimator = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Estimator: " + getMachineName());
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+		}
+		return estimator;
+	}
+
+	// Start a new estimate, dropping any that is still running.
+	private synchronized int newEstimate() {
+		machineThread.setEstimatedBuildTime(0);
+		estimatedBounds = null;
+		return ++estimateGeneration;
+	}
+
+	// Hand over an estimate, unless a newer one has been started since.
+	private void finishEstimate(int generation, EstimateCache.Estimate estimate) {
+		synchronized (this) {
+			if (generation != estimateGeneration || estimate == null) {
+				return;
+			}
+			machineThread.setEstimatedBuildTime(estimate.getBuildTime());
+			estimatedBounds = estimate.getBounds();
+		}
+		Base.logger.info("Estimated build time is: "
+				+ EstimationDriver.getBuildTimeString(estimate.getBuildTime()));
+
+		MachineProgressEvent progress = machineThread.getProgress();
+		if (progress != null) {
+			emitProgress(progress);
+		}
+	}
+
+	/**
+	 * @return the estimated build time and bounds, or null if a newer estimate was started first
+	 */
+	private EstimateCache.Estimate estimateBuildTime(GCodeSource source, int generation) {
+		// The same job on the same machine has been estimated before.
+		EstimateCache cache = EstimateCache.getDefault();
+		String key = null;
+		Iterable<String> lines = source;
+		if (cache != null) {
+			key = cache.getKey(source, machineThread.getModel());
+			if (key == null) {
+				// A file not seen before is hashed as it is estimated, so it is only read once.
+				lines = cache.hashWhileReading(source);
+			} else {
+				EstimateCache.Estimate cached = cache.get(key);
+				if (cached != null) {
+					return cached;
+				}
+			}
+		}
+
 		EstimationDriver estimator = new EstimationDriver();
 		// TODO: Is this correct?
 		estimator.setMachine(machineThread.getModel());
@@ -200,10 +419,14 @@ public class Machine implements MachineInterface {
 		GCodeParser estimatorParser = new GCodeParser();
 		estimatorParser.init(estimator);
 
-		// run each line through the estimator
-		for (String line : source) {
+		// run each line through the estimator, tokenizing on all cores ahead of it
+		int count = 0;
+		for (GCode code : new ParallelTokenizer(lines)) {
+			if ((++count & 0x3ff) == 0 && generation != estimateGeneration) {
+				return null;
+			}
 			// TODO: Hooks for plugins to add estimated time?
-			estimatorParser.parse(line, estimatorQueue);
+			estimatorParser.parse(code, estimatorQueue);
 
 			for (DriverCommand command : estimatorQueue) {
 				try {
@@ -226,11 +449,13 @@ public class Machine implements MachineInterface {
 		// ((SimulationDriver)driver).setSimulationBounds(estimator.getBounds());
 		// }
 
-		machineThread.setEstimatedBuildTime(estimator.getBuildTime());
-		Base.logger
-				.info("Estimated build time is: "
-						+ EstimationDriver.getBuildTimeString(estimator
-								.getBuildTime()));
+		if (cache != null) {
+			if (key == null) {
+				key = ((EstimateCache.Hashing) lines).getKey(machineThread.getModel());
+			}
+			cache.put(key, estimator.getBuildTime(), estimator.getBounds());
+		}
+		return new EstimateCache.Estimate(estimator.getBuildTime(), estimator.getBounds());
 	}
 
 	public DriverQueryInterface getDriverQueryInterface() {
@@ -1,101 +1,235 @@
 package replicatorg.machine;
 
-import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 
 import replicatorg.app.Base;
+import replicatorg.machine.model.ToolModel;
 
 
-/** Thread that handles callbacks for events from the machine controller.
- * TODO: There /has/ to be a better way of doing this.
+/** Handles callbacks for events from the machine controller.
+ *
+ * State changes reach every listener, all of them and in order. Progress and
+ * tool status only matter as of now, so each listener has a slot for the latest
+ * progress and for the latest status of each tool, which a newer event simply
+ * replaces. These go to each listener at most "machine.max_event_rate" times a
+ * second (0 for no limit). Progress waiting when a state change is scheduled
+ * goes out just before it, whatever the limit, so progress never seems to
+ * follow the state change that ended it.
+ *
+ * Each listener is called on its own executor, which is woken as soon as
+ * something is scheduled for it, so a slow listener only holds up itself.
+ * Scheduling never blocks, and never fails: events for a listener that has
+ * been removed, or after the handler has been taken down, are dropped. The
+ * handler thread itself only waits to be taken down, and then stops the executors.
  * @author mattmets
  *
  */
 public class MachineCallbackHandler extends Thread {
-	
-	// Send messages to these listeners
-	private Vector<MachineListener> listeners = new Vector<MachineListener>();
-
-	// We have to send these kinds of messages.
-	// TODO: Make this abstract.
-	ConcurrentLinkedQueue<MachineStateChangeEvent> machineStateChangeEventQueue;
-	ConcurrentLinkedQueue<MachineProgressEvent> machineProgressEventQueue;
-	ConcurrentLinkedQueue<MachineToolStatusEvent> machineToolStatusEventQueue;
-	
-	public MachineCallbackHandler() {
-		super("Machine Callback Handler");
-		
-		machineStateChangeEventQueue = new ConcurrentLinkedQueue<MachineStateChangeEvent>();
-		machineProgressEventQueue = new ConcurrentLinkedQueue<MachineProgressEvent>();
-		machineToolStatusEventQueue = new ConcurrentLinkedQueue<MachineToolStatusEvent>();
+
+	// A state change, with the progress that was waiting when it was scheduled.
+	private static class StateChange {
+		final MachineProgressEvent progress;
+		final MachineStateChangeEvent status;
+
+		StateChange(MachineProgressEvent progress, MachineStateChangeEvent status) {
+			this.progress = progress;
+			this.status = status;
+		}
 	}
-	
-	private synchronized void sendMessages() {
-		while (!machineStateChangeEventQueue.isEmpty()) {
-			for (MachineListener l : listeners) {
-				l.machineStateChanged(machineStateChangeEventQueue.peek());
+
+	// What is waiting to go to one listener, and the executor that sends it.
+	private class Subscriber implements Runnable {
+		final MachineListener listener;
+		final ScheduledExecutorService executor;
+		final ConcurrentLinkedQueue<StateChange> stateChanges = new ConcurrentLinkedQueue<StateChange>();
+		final AtomicReference<MachineProgressEvent> progress = new AtomicReference<MachineProgressEvent>();
+		final ConcurrentHashMap<ToolModel, MachineToolStatusEvent> toolStatus = new ConcurrentHashMap<ToolModel, MachineToolStatusEvent>();
+		// True while a run is waiting on the executor.
+		final AtomicBoolean signalled = new AtomicBoolean(false);
+
+		// Only touched on the executor: when progress and tool status were last
+		// sent, in nanos, and whether a run is put off until one of them is due.
+		long progressSent;
+		long toolStatusSent;
+		boolean delayed = false;
+
+		Subscriber(final MachineListener listener) {
+			this.listener = listener;
+			progressSent = System.nanoTime() - interval;
+			toolStatusSent = progressSent;
+			executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Machine Listener: " + listener.getClass().getSimpleName());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		// Have the executor send whatever is waiting. Once the listener has been
+		// removed or the handler taken down, events are dropped.
+		void signal() {
+			if (signalled.compareAndSet(false, true)) {
+				try {
+					executor.execute(this);
+				} catch (RejectedExecutionException e) {
+					// Shut down; leave signalled set, so nothing more is tried.
+				}
 			}
-			Base.logger.fine("Sending machine state change event: "
-					+ machineStateChangeEventQueue.peek().getState().getState().toString());
-			machineStateChangeEventQueue.remove();
 		}
-		
-		while (!machineProgressEventQueue.isEmpty()) {
-			for (MachineListener l : listeners) {
-				l.machineProgress(machineProgressEventQueue.peek());
+
+		public void run() {
+			// Cleared first, so anything scheduled from here on signals again.
+			signalled.set(false);
+			try {
+				send();
+			} catch (RuntimeException e) {
+				Base.logger.log(Level.SEVERE, "Machine listener failed", e);
 			}
-			machineProgressEventQueue.remove();
 		}
-		
-		while (!machineToolStatusEventQueue.isEmpty()) {
-			for (MachineListener l : listeners) {
-				l.toolStatusChanged(machineToolStatusEventQueue.peek());
+
+		private void send() {
+			StateChange change;
+			while ((change = stateChanges.poll()) != null) {
+				if (change.progress != null) {
+					listener.machineProgress(change.progress);
+					progressSent = System.nanoTime();
+				}
+				Base.logger.fine("Sending machine state change event: "
+						+ change.status.getState().getState().toString());
+				listener.machineStateChanged(change.status);
+			}
+
+			long now = System.nanoTime();
+			long wait = Long.MAX_VALUE;
+			if (progress.get() != null) {
+				long due = progressSent + interval - now;
+				if (due <= 0) {
+					MachineProgressEvent event = progress.getAndSet(null);
+					if (event != null) {
+						listener.machineProgress(event);
+						progressSent = now;
+					}
+				} else {
+					wait = due;
+				}
+			}
+
+			if (!toolStatus.isEmpty()) {
+				long due = toolStatusSent + interval - now;
+				if (due <= 0) {
+					for (ToolModel tool : toolStatus.keySet()) {
+						MachineToolStatusEvent e = toolStatus.remove(tool);
+						if (e != null) {
+							listener.toolStatusChanged(e);
+						}
+					}
+					toolStatusSent = now;
+				} else {
+					wait = Math.min(wait, due);
+				}
+			}
+
+			// Come back when the held back events are due.
+			if (wait != Long.MAX_VALUE && !delayed) {
+				delayed = true;
+				try {
+					executor.schedule(new Runnable() {
+						public void run() {
+							delayed = false;
+							signal();
+						}
+					}, wait, TimeUnit.NANOSECONDS);
+				} catch (RejectedExecutionException e) {
+					// Shut down meanwhile.
+				}
 			}
-			machineToolStatusEventQueue.remove();
 		}
 	}
-	
+
+	// Send messages to these listeners
+	private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+
+	// Least time between progress (or tool status) events to one listener, in nanos.
+	private final long interval;
+
+	public MachineCallbackHandler() {
+		super("Machine Callback Handler");
+
+		double rate = Base.preferences.getDouble("machine.max_event_rate", 10.0);
+		interval = (rate > 0) ? (long) (1e9 / rate) : 0;
+	}
+
 	@Override
 	public void run() {
-		while(true) {
-			// If we have any messages to send out, do so, otherwise wait.
-			try {
-				sendMessages();
-	
-				sleep(100);
-			} catch (InterruptedException e) {
-				// Terminate!
-				Base.logger.fine("taking callback handler down, state change queue: "
-						+ machineStateChangeEventQueue.size());
-				break;
+		try {
+			while (true) {
+				synchronized (this) {
+					wait();
+				}
 			}
+		} catch (InterruptedException e) {
+			// Terminate!
+			Base.logger.fine("taking callback handler down");
+		}
+		for (Subscriber s : subscribers) {
+			s.executor.shutdownNow();
 		}
 	}
-	
-	synchronized public void addMachineListener(MachineListener listener) {
-		// TODO: Is this thread safe?
-		listeners.add(listener);
+
+	public void addMachineListener(MachineListener listener) {
+		subscribers.add(new Subscriber(listener));
 		// TODO: Was this important?
 //		listener.machineStateChanged(new MachineStateChangeEvent(this,
 //				getMachineState()));
 	}
 
-	synchronized public void removeMachineListener(MachineListener listener) {
-		// TODO: Is this thread safe?
-		listeners.remove(listener);
+	public void removeMachineListener(MachineListener listener) {
+		for (Subscriber s : subscribers) {
+			if (s.listener == listener) {
+				subscribers.remove(s);
+				s.executor.shutdown();
+			}
+		}
 	}
 
-	synchronized public void schedule(MachineStateChangeEvent status) {
-		machineStateChangeEventQueue.add(status);
+	public void schedule(MachineStateChangeEvent status) {
 		Base.logger.fine("Scheduling machine state change event: "
 				+ status.getState().getState().toString());
+		for (Subscriber s : subscribers) {
+			// Take the waiting progress along, so it can't go out after the state change.
+			s.stateChanges.add(new StateChange(s.progress.getAndSet(null), status));
+			s.signal();
+		}
 	}
 
-	synchronized public void schedule(MachineProgressEvent progress) {
-		machineProgressEventQueue.add(progress);
+	public void schedule(MachineProgressEvent progress) {
+		if (progress == null) {
+			return;
+		}
+		for (Subscriber s : subscribers) {
+			s.progress.set(progress);
+			s.signal();
+		}
 	}
 
-	synchronized public void schedule(MachineToolStatusEvent e) {
-		machineToolStatusEventQueue.add(e);
+	public void schedule(MachineToolStatusEvent e) {
+		if (e.getTool() == null) {
+			return;
+		}
+		for (Subscriber s : subscribers) {
+			s.toolStatus.put(e.getTool(), e);
+			s.signal();
+		}
 	}
 }
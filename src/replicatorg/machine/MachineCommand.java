@@ -2,6 +2,8 @@ package replicatorg.machine;
 
 import replicatorg.drivers.commands.DriverCommand;
 import replicatorg.machine.Machine.RequestType;
+import replicatorg.machine.builder.Streaming;
+import replicatorg.model.CompiledJob;
 import replicatorg.model.GCodeSource;
 
 public class MachineCommand {
@@ -10,6 +12,8 @@ public class MachineCommand {
 	final GCodeSource source;
 	final String remoteName;
 	final DriverCommand command;
+	final Streaming stream;
+	final CompiledJob job;
 
 	public MachineCommand(RequestType type, GCodeSource source,
 			String remoteName) {
@@ -18,6 +22,8 @@ public class MachineCommand {
 		this.remoteName = remoteName;
 		
 		this.command = null;
+		this.stream = null;
+		this.job = null;
 	}
 
 	public MachineCommand(RequestType type, DriverCommand command) {
@@ -26,5 +32,27 @@ public class MachineCommand {
 		
 		this.source = null;
 		this.remoteName = null;
+		this.stream = null;
+		this.job = null;
+	}
+
+	public MachineCommand(RequestType type, Streaming stream) {
+		this.type = type;
+		this.stream = stream;
+		
+		this.source = null;
+		this.remoteName = null;
+		this.command = null;
+		this.job = null;
+	}
+
+	public MachineCommand(RequestType type, CompiledJob job) {
+		this.type = type;
+		this.job = job;
+		
+		this.source = null;
+		this.remoteName = null;
+		this.command = null;
+		this.stream = null;
 	}
 }
\ No newline at end of file
@@ -1,11 +1,18 @@
 package replicatorg.machine;
 
+import java.awt.geom.Rectangle2D;
+import java.io.File;
+import java.io.IOException;
+
 import replicatorg.drivers.Driver;
 import replicatorg.drivers.DriverQueryInterface;
 import replicatorg.drivers.commands.DriverCommand;
 import replicatorg.machine.Machine.JobTarget;
+import replicatorg.machine.builder.Streaming;
 import replicatorg.machine.model.MachineModel;
+import replicatorg.model.CompiledJob;
 import replicatorg.model.GCodeSource;
+import replicatorg.util.Point5d;
 
 
 /**
@@ -62,6 +69,14 @@ public interface MachineInterface {
 	 * @param source GCode source of job to estimate
 	 */
 	public void estimate(GCodeSource source);
+
+	/** @return the XY bounds of the job found by the last estimate, in mm, or null if it isn't done yet */
+	public Rectangle2D.Double getEstimatedBounds();
+
+	/** Analyze a job in the background, writing a machine-readable report (see JobAnalyzer) to the given file.
+	 * @param source GCode source of job to analyze
+	 */
+	public void analyze(GCodeSource source, File report);
 	
 	/** Run the job in a simulator */
 	
@@ -72,6 +87,22 @@ public interface MachineInterface {
 	public void simulate(GCodeSource source);
 	
 	public boolean buildDirect(GCodeSource source);
+
+	/** Parse a job once, padded with this machine's warmup and cooldown, into a file that can be built without parsing. **/
+	public CompiledJob compile(GCodeSource source, File file) throws IOException;
+
+	/** Build a compiled job, using the estimate made when it was compiled. **/
+	public boolean buildCompiled(CompiledJob job);
+	
+	/** Start a build that runs whatever is appended to the returned stream, until the stream is closed.
+	 * @param capacity number of lines or commands that may be waiting in the stream
+	 */
+	public Streaming buildStreaming(int capacity);
+	
+	/** Move by the given delta (in mm) at the given feedrate (in mm/minute), as part of the current stream.
+	 * @return false if there is no open stream, or it is full
+	 */
+	public boolean queueRelativeMove(Point5d delta, double feedrate);
 	public boolean buildRemote(String remoteName);
 	public void buildToFile(GCodeSource source, String path);
 	public void upload(GCodeSource source, String remoteName);
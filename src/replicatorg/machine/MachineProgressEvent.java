@@ -7,19 +7,44 @@ public class MachineProgressEvent {
 	private double estimated;
 	private int lines;
 	private int totalLines;
+	private long bytes;
 	public MachineProgressEvent(double elapsed, double estimated, int lines, int totalLines) {
+		this(elapsed, estimated, lines, totalLines, -1);
+	}
+
+	/**
+	 * @param totalLines -1 if the length of the job isn't known
+	 * @param bytes bytes of the job read so far, or -1 if not counted
+	 */
+	public MachineProgressEvent(double elapsed, double estimated, int lines, int totalLines, long bytes) {
 		this.elapsed = elapsed;
 		this.estimated = estimated;
 		this.lines = lines;
 		this.totalLines = totalLines;
+		this.bytes = bytes;
 	}
 	
 	public double getElapsed() { return elapsed; }
 	public double getEstimated() { return estimated; }
 	public int getLines() { return lines; }
 	public int getTotalLines() { return totalLines; }
+	public long getBytes() { return bytes; }
+	/** True if the job has a known length, so the proportion done can be worked out. */
+	public boolean isLengthKnown() { return totalLines >= 0; }
 	
 	public String toString() {
+		if (!isLengthKnown()) {
+			// Only the work done so far can be told.
+			StringBuffer buf = new StringBuffer("Commands: ");
+			buf.append(String.format("%1$7d", lines));
+			if (bytes >= 0) {
+				buf.append("     |     Bytes read: ");
+				buf.append(bytes);
+			}
+			buf.append("     |     Elapsed time: ");
+			buf.append(EstimationDriver.getBuildTimeString(elapsed, true));
+			return buf.toString();
+		}
 		double proportion = (double)lines/(double)totalLines;
 		StringBuffer buf = new StringBuffer("Commands: ");
 		buf.append(String.format("%1$7d / %2$7d", lines, totalLines));
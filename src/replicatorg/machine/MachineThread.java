@@ -1,5 +1,6 @@
 package replicatorg.machine;
 
+import java.io.IOException;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -21,9 +22,13 @@ import replicatorg.machine.Machine.JobTarget;
 import replicatorg.machine.Machine.RequestType;
 import replicatorg.machine.builder.Direct;
 import replicatorg.machine.builder.MachineBuilder;
+import replicatorg.machine.builder.ParseAhead;
+import replicatorg.machine.builder.Replay;
+import replicatorg.machine.builder.Streaming;
 import replicatorg.machine.model.MachineModel;
 import replicatorg.model.GCodeSource;
 import replicatorg.model.GCodeSourceCollection;
+import replicatorg.model.StreamSource;
 import replicatorg.model.StringListSource;
 
 /**
@@ -95,8 +100,17 @@ class MachineThread extends Thread {
 	
 	private Timer pollingTimer;
 
-	// Link of machine commands to run
-	ConcurrentLinkedQueue<MachineCommand> pendingQueue;
+	// Limits progress events; the callback handler limits them further for each listener.
+	private static final long PROGRESS_INTERVAL_MS = 50;
+	private Timer progressTimer;
+
+	// Machine commands to run. Stops go ahead of everything else, and are looked
+	// for between every packet; everything else is run between builder steps.
+	ConcurrentLinkedQueue<MachineCommand> emergencyQueue;
+	ConcurrentLinkedQueue<MachineCommand> interactiveQueue;
+	
+	// How long an interactive command is retried while the machine is busy, in millis.
+	private final long interactiveTimeout;
 		
 	// this is the xml config for this machine.
 	private Node machineNode;
@@ -111,14 +125,17 @@ class MachineThread extends Thread {
 	private String name;
 	
 	// Things that belong to a job
-		// estimated build time in millis
-		private double estimatedBuildTime = 0;
+		// estimated build time in millis; set from the estimator's thread
+		private volatile double estimatedBuildTime = 0;
 	
 		// Build statistics
 		private double startTimeMillis = -1;
+
+	// Set while building from a stream of unknown length, for progress by bytes.
+	private StreamSource streamSource = null;
 	
 	// Our driver object. Null when no driver is selected.
-	private Driver driver = null;
+	private volatile Driver driver = null;
 	
 	private MachineState state = new MachineState(MachineState.State.NOT_ATTACHED);
 
@@ -131,8 +148,12 @@ class MachineThread extends Thread {
 		super("Machine Thread");
 		
 		pollingTimer = new Timer();
+		progressTimer = new Timer();
+		progressTimer.start(PROGRESS_INTERVAL_MS);
 		
-		pendingQueue = new ConcurrentLinkedQueue<MachineCommand>();
+		emergencyQueue = new ConcurrentLinkedQueue<MachineCommand>();
+		interactiveQueue = new ConcurrentLinkedQueue<MachineCommand>();
+		interactiveTimeout = Base.preferences.getInt("machine.interactive_timeout_ms", 5000);
 		
 		// save our XML
 		this.machineNode = machineNode;
@@ -278,8 +299,19 @@ class MachineThread extends Thread {
 				
 				// Pad the job with start and end code
 				GCodeSource combinedSource = buildGCodeJob(command.source);
+				streamSource = (command.source instanceof StreamSource) ? (StreamSource) command.source : null;
 				
+				// Parse ahead on another thread, unless it has been turned off. Sources of unknown
+				// length are always parsed ahead, so waiting for input never holds up the machine thread.
+				int parseAhead = Base.preferences.getInt("build.parse_ahead", ParseAhead.DEFAULT_CAPACITY);
+				if (parseAhead <= 0 && combinedSource.getLineCount() < 0) {
+					parseAhead = ParseAhead.DEFAULT_CAPACITY;
+				}
+				if (parseAhead > 0) {
+					machineBuilder = new ParseAhead(driver, combinedSource, parseAhead);
+				} else {
 					machineBuilder = new Direct(driver, combinedSource);
+				}
 				
 				// TODO: This shouldn't be done here?
 				driver.invalidatePosition();
@@ -288,6 +320,56 @@ class MachineThread extends Thread {
 				setState(new MachineState(MachineState.State.BUILDING), buildingMessage());
 			}
 			break;
+		case BUILD_COMPILED:
+			if (state.canPrint()) {
+				// The job was padded with start and end code when it was compiled.
+				Replay replay;
+				try {
+					replay = new Replay(driver, command.job);
+				} catch (IOException e) {
+					Base.logger.severe("Can't build " + command.job.getFile().getName() + ": " + e.getMessage());
+					break;
+				}
+				startTimeMillis = System.currentTimeMillis();
+				
+				pollingTimer.start(1000);
+
+				if (!isSimulating()) {
+					driver.getCurrentPosition(false); // reconcile position
+				}
+				
+				machineBuilder = replay;
+				streamSource = null;
+				
+				// As for a direct build, ask the machine where it is when the job needs it.
+				driver.invalidatePosition();
+				
+				setState(new MachineState(MachineState.State.BUILDING), buildingMessage());
+			}
+			break;
+		case BUILD_STREAMING:
+			if (state.canPrint()) {
+				startTimeMillis = System.currentTimeMillis();
+				
+				pollingTimer.start(1000);
+				
+				// A stream has no length to estimate.
+				estimatedBuildTime = 0;
+
+				// Keep the tracked position; only ask the machine if we have lost it.
+				if (!isSimulating()) {
+					driver.getCurrentPosition(false);
+				}
+				
+				machineBuilder = command.stream;
+				streamSource = null;
+				
+				setState(new MachineState(MachineState.State.BUILDING), buildingMessage());
+			} else {
+				// Let the producer know that nothing will be consuming the stream.
+				command.stream.close();
+			}
+			break;
 		case PAUSE:
 			if (state.getState() == MachineState.State.BUILDING) {
 				setState(new MachineState(MachineState.State.PAUSED), "Build paused");
@@ -299,7 +381,9 @@ class MachineThread extends Thread {
 			}
 			break;
 		case STOP_MOTION:
+			driver.clearStopRequest();
 			driver.stop(false);
+			stopBuilder();
 			
 			if (state.getState() == MachineState.State.BUILDING) {
 				setState(new MachineState(MachineState.State.READY),
@@ -315,7 +399,9 @@ class MachineThread extends Thread {
 			driver.getMachine().currentTool().setTargetTemperature(0);
 			driver.getMachine().currentTool().setPlatformTargetTemperature(0);
 			
+			driver.clearStopRequest();
 			driver.stop(true);
+			stopBuilder();
 			
 			if (state.getState() == MachineState.State.BUILDING) {
 				setState(new MachineState(MachineState.State.READY),
@@ -339,16 +425,23 @@ class MachineThread extends Thread {
 //			break;
 		case RUN_COMMAND:
 			if (state.isConnected()) {
-				boolean completed = false;
-				// TODO: Don't get stuck in a loop here!
-				
-				while(!completed) {
+				// Retry while the machine is busy, but not past a stop or the timeout.
+				long deadline = System.currentTimeMillis() + interactiveTimeout;
+				while (true) {
 					try {
 						command.command.run(driver);
-						completed = true;
+						break;
 					} catch (RetryException e) {
 					} catch (StopException e) {
 					}
+					if (!emergencyQueue.isEmpty()) {
+						Base.logger.fine("Dropped " + command.command.getClass().getSimpleName() + " for a stop");
+						break;
+					}
+					if (System.currentTimeMillis() > deadline) {
+						Base.logger.warning("Machine busy, gave up on " + command.command.getClass().getSimpleName());
+						break;
+					}
 				}
 			}
 			break;
@@ -389,10 +482,8 @@ class MachineThread extends Thread {
 			
 			//
 			
-			// Check for and run any control requests that might be in the queue.
-			while (!pendingQueue.isEmpty()) {
-				runCommand(pendingQueue.remove());
-			}
+			// Check for and run any control requests that might be in the queues.
+			runPendingCommands();
 			
 			// If we are building
 			if ( state.isBuilding() && !state.isPaused() ) {
@@ -407,14 +498,10 @@ class MachineThread extends Thread {
 					}
 				}
 				
-				// Send out a progress event
-				// TODO: Should these be rate limited?
-				MachineProgressEvent progress = 
-					new MachineProgressEvent((double)System.currentTimeMillis()-startTimeMillis,
-							estimatedBuildTime,
-							machineBuilder.getLinesProcessed(),
-							machineBuilder.getLinesTotal());
-				controller.emitProgress(progress);
+				// Send out a progress event now and then, and at the end.
+				if (progressTimer.elapsed() || machineBuilder.finished()) {
+					controller.emitProgress(getProgress());
+				}
 				
 				if (machineBuilder.finished()) {
 					// TODO: Exit correctly.
@@ -451,8 +538,50 @@ class MachineThread extends Thread {
 		dispose();
 	}
 	
+	// Stop accepting input if the current build is a stream, or stop parsing or reading ahead.
+	private void stopBuilder() {
+		if (machineBuilder instanceof Streaming) {
+			((Streaming) machineBuilder).close();
+		} else if (machineBuilder instanceof ParseAhead) {
+			((ParseAhead) machineBuilder).stop();
+		} else if (machineBuilder instanceof Replay) {
+			((Replay) machineBuilder).close();
+		}
+		if (streamSource != null) {
+			// Wakes up the parser if it is waiting for input.
+			streamSource.close();
+		}
+	}
+	
+	// Run the waiting commands, stops first. A stop that comes in meanwhile goes
+	// ahead of the interactive commands still waiting.
+	private void runPendingCommands() {
+		while (true) {
+			MachineCommand command = emergencyQueue.poll();
+			if (command == null) {
+				command = interactiveQueue.poll();
+			}
+			if (command == null) {
+				return;
+			}
+			runCommand(command);
+		}
+	}
+	
+	private static boolean isEmergency(RequestType type) {
+		return type == RequestType.STOP_MOTION || type == RequestType.STOP_ALL;
+	}
+	
 	public boolean scheduleRequest(MachineCommand request) {
-		pendingQueue.add(request);
+		if (isEmergency(request.type)) {
+			emergencyQueue.add(request);
+			// Make the driver let go of whatever it is sending or retrying.
+			if (driver != null) {
+				driver.requestStop();
+			}
+		} else {
+			interactiveQueue.add(request);
+		}
 		synchronized(this) { notify(); }
 		
 		return true;
@@ -482,6 +611,22 @@ class MachineThread extends Thread {
 		return JobTarget.NONE;
 	}
 	
+	/**
+	 * @return the progress of the current build, or null if nothing is being built
+	 */
+	MachineProgressEvent getProgress() {
+		MachineBuilder builder = machineBuilder;
+		if (builder == null || !state.isBuilding()) {
+			return null;
+		}
+		StreamSource stream = streamSource;
+		return new MachineProgressEvent((double)System.currentTimeMillis()-startTimeMillis,
+				estimatedBuildTime,
+				builder.getLinesProcessed(),
+				builder.getLinesTotal(),
+				stream != null ? stream.getBytesRead() : -1);
+	}
+	
 	public int getLinesProcessed() {
 		if (machineBuilder != null) {
 			return machineBuilder.getLinesProcessed();
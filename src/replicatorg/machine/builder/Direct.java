@@ -1,7 +1,7 @@
 package replicatorg.machine.builder;
 
+import java.util.ArrayDeque;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Queue;
 import java.util.logging.Level;
 
@@ -13,6 +13,7 @@ import replicatorg.drivers.Driver;
 import replicatorg.drivers.DriverQueryInterface;
 import replicatorg.drivers.RetryException;
 import replicatorg.drivers.StopException;
+import replicatorg.drivers.commands.CommandPool;
 import replicatorg.drivers.commands.DriverCommand;
 import replicatorg.machine.Machine.JobTarget;
 import replicatorg.model.GCodeSource;
@@ -35,11 +36,11 @@ public class Direct implements MachineBuilder{
 	Iterator<String> i;
 	
 	int linesProcessed;
-	int linesTotal;
 	
 	Driver driver;
 	GCodeParser parser;
 	Queue<DriverCommand> driverQueue;
+	CommandPool commandPool;
 	boolean building;		// True if we are running to the machine
 	
 	GCodeParser simulationParser;
@@ -55,7 +56,6 @@ public class Direct implements MachineBuilder{
 		this.source = source;
 	
 		linesProcessed = 0;
-		linesTotal = source.getLineCount();
 		
 		// Initialize our gcode provider
 		i = source.iterator();
@@ -68,9 +68,13 @@ public class Direct implements MachineBuilder{
 			parser = new GCodeParser();
 			
 			// Queue of commands that we get from the parser, and run on the driver.
-			driverQueue = new LinkedList< DriverCommand >();
+			driverQueue = new ArrayDeque< DriverCommand >();
 			
 			parser.init((DriverQueryInterface) driver);
+
+			// Reuse the feedrate and move commands once they have been run.
+			commandPool = new CommandPool();
+			parser.setCommandPool(commandPool);
 		}
 		
 		simulating = false;
@@ -140,7 +144,7 @@ public class Direct implements MachineBuilder{
 				// Run the command on the machine.
 				while(!driverQueue.isEmpty()) {
 					driverQueue.peek().run(driver);
-					driverQueue.remove();
+					commandPool.recycle(driverQueue.remove());
 				}
 			}
 			
@@ -184,7 +188,8 @@ public class Direct implements MachineBuilder{
 	}
 	
 	public int getLinesTotal() {
-		return linesTotal;
+		// The source may still be counting its lines.
+		return source.getLineCount();
 	}
 	public int getLinesProcessed() {
 		return linesProcessed;
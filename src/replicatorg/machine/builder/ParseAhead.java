@@ -0,0 +1,436 @@
+package replicatorg.machine.builder;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import javax.swing.JOptionPane;
+import javax.vecmath.Point3d;
+
+import replicatorg.app.Base;
+import replicatorg.app.GCodeParser;
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.DriverQueryInterface;
+import replicatorg.drivers.MultiTool;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.StopException;
+import replicatorg.drivers.Version;
+import replicatorg.drivers.commands.CommandCodec;
+import replicatorg.drivers.commands.CommandPool;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.drivers.commands.QueueArc;
+import replicatorg.drivers.commands.QueuePoint;
+import replicatorg.drivers.commands.SetCurrentPosition;
+import replicatorg.machine.Machine.JobTarget;
+import replicatorg.model.GCodeSource;
+import replicatorg.util.Point5d;
+
+/**
+ * Machine builder for building a GCodeSource on a Driver, like Direct, but with
+ * the parsing done ahead of time on a separate thread. The parser fills a bounded
+ * ring of command batches, and the machine thread only runs them, so parsing
+ * overlaps with the serial round trips. When the ring is full the parser waits.
+ *
+ * The parser may run ahead of the machine, so it works from the position its
+ * own moves lead to. Commands that leave the position or the offsets up to the
+ * machine (homing, for instance) make the parser wait until the machine has
+ * run them, and then ask it where it is.
+ * @author kshoji
+ *
+ */
+public class ParseAhead implements MachineBuilder {
+
+	public enum State {
+		RUNNING_GCODE,
+		WAITING_FOR_MACHINE_FINISH,
+		FINISHED
+	}
+
+	/** Default number of command batches parsed ahead; 0 builds with Direct instead. */
+	public static final int DEFAULT_CAPACITY = 16;
+
+	// Most lines parsed into one batch.
+	private static final int BATCH_LINES = 32;
+
+	// How long runNext() waits for a batch before handing control back to the machine thread.
+	private static final long POLL_MILLIS = 10;
+
+	// The commands of some lines, in order.
+	private static class Batch {
+		final Queue<DriverCommand> commands = new ArrayDeque<DriverCommand>();
+		int lines = 0;
+	}
+
+	// Asks the machine thread for the position, once everything before it has run.
+	private static class Sync {
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile Point5d position;
+	}
+
+	// Marks the end of the source.
+	private static final Object END = new Object();
+
+	// Ends the build in place of END when a line couldn't be parsed.
+	private static class ParseError {
+		final int line;
+		final RuntimeException error;
+
+		ParseError(int line, RuntimeException error) {
+			this.line = line;
+			this.error = error;
+		}
+	}
+
+	// Thrown through the parser when the build is stopped while it waits for the machine.
+	private static class Stopped extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	GCodeSource source;
+
+	int linesProcessed;
+
+	Driver driver;
+	GCodeParser parser;
+	ParsedQuery query;
+	CommandPool commandPool;
+
+	// Parsed batches, Syncs and END, in order.
+	BlockingQueue<Object> ring;
+	// The batch being run on the machine thread.
+	Batch current = null;
+	// The batch being filled on the parsing thread.
+	Batch pending = new Batch();
+
+	Thread producer = null;
+	volatile boolean stopped = false;
+
+	State state;
+
+	public ParseAhead(Driver driver, GCodeSource source, int capacity) {
+		this.driver = driver;
+		this.source = source;
+
+		linesProcessed = 0;
+
+		ring = new ArrayBlockingQueue<Object>(capacity);
+
+		parser = new GCodeParser();
+		query = new ParsedQuery();
+		parser.init(query);
+
+		// Reuse the feedrate and move commands once they have been run.
+		commandPool = new CommandPool();
+		parser.setCommandPool(commandPool);
+
+		state = State.RUNNING_GCODE;
+	}
+
+	/**
+	 * Stop parsing, and drop everything parsed but not yet run.
+	 */
+	public void stop() {
+		stopped = true;
+		if (producer != null) {
+			producer.interrupt();
+		}
+		ring.clear();
+		current = null;
+	}
+
+	@Override
+	public boolean finished() {
+		return (state == State.FINISHED);
+	}
+
+	// Run the next batch on the driver
+	@Override
+	public void runNext() {
+		if (state == State.FINISHED) {
+			return;
+		}
+
+		// The parser is started from here, once the machine thread has set up the build.
+		if (producer == null) {
+			producer = new Thread(new Producer(), "Parse ahead");
+			producer.setDaemon(true);
+			producer.start();
+		}
+
+		if (state == State.WAITING_FOR_MACHINE_FINISH) {
+			if (driver.isFinished()) {
+				state = State.FINISHED;
+			}
+			return;
+		}
+
+		// Check for any driver errors
+		if (driver.hasError()) {
+			Base.logger.severe("Driver reported an error, aborting build");
+			return;
+		}
+
+		if (current == null) {
+			Object next;
+			try {
+				next = ring.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				// Let the machine thread see the interruption.
+				Thread.currentThread().interrupt();
+				return;
+			}
+
+			if (next == null) {
+				return;
+			}
+			if (next == END) {
+				state = driver.isFinished() ? State.FINISHED : State.WAITING_FOR_MACHINE_FINISH;
+				return;
+			}
+			if (next instanceof ParseError) {
+				// Everything before the bad line has been run.
+				ParseError error = (ParseError) next;
+				JOptionPane.showMessageDialog(null, "Couldn't parse line " + error.line + ": " + error.error.getMessage(),
+						"Parse error: build ended", JOptionPane.ERROR_MESSAGE);
+				finish();
+				return;
+			}
+			if (next instanceof Sync) {
+				Sync sync = (Sync) next;
+				sync.position = driver.getCurrentPosition(false);
+				sync.done.countDown();
+				return;
+			}
+			current = (Batch) next;
+		}
+
+		try {
+			// Run the commands on the machine.
+			while(!current.commands.isEmpty()) {
+				current.commands.peek().run(driver);
+				commandPool.recycle(current.commands.remove());
+			}
+			linesProcessed += current.lines;
+			current = null;
+		} catch (RetryException r) {
+			// Leave the command at the head of the batch; it is retried on the next go-round.
+			Base.logger.log(Level.FINE,"Message delivery failed, retrying");
+		} catch (StopException e) {
+			switch (e.getType()) {
+			case UNCONDITIONAL_HALT:
+				JOptionPane.showMessageDialog(null, e.getMessage(),
+						"Unconditional halt: build ended", JOptionPane.INFORMATION_MESSAGE);
+				finish();
+				break;
+			case PROGRAM_END:
+				JOptionPane.showMessageDialog(null, e.getMessage(),
+						"Program end: Build ended", JOptionPane.INFORMATION_MESSAGE);
+				finish();
+				break;
+			case OPTIONAL_HALT:
+				int result = JOptionPane.showConfirmDialog(null, e.getMessage(),
+						"Optional halt: Continue build?", JOptionPane.YES_NO_OPTION);
+
+				if (result == JOptionPane.YES_OPTION) {
+					current.commands.remove();
+				} else {
+					finish();
+				}
+				break;
+			case PROGRAM_REWIND:
+				JOptionPane.showMessageDialog(null, e.getMessage(),
+						"Program rewind: Build ended", JOptionPane.INFORMATION_MESSAGE);
+				finish();
+				break;
+			}
+		}
+	}
+
+	private void finish() {
+		stop();
+		state = State.FINISHED;
+	}
+
+	public int getLinesTotal() {
+		// The source may still be counting its lines.
+		return source.getLineCount();
+	}
+	public int getLinesProcessed() {
+		return linesProcessed;
+	}
+
+	@Override
+	public boolean isInteractive() {
+		return true;
+	}
+
+	@Override
+	public JobTarget getTarget() {
+		return JobTarget.MACHINE;
+	}
+
+	// Parses the source into batches, until it ends or the build is stopped.
+	private class Producer implements Runnable {
+		private final Queue<DriverCommand> lineCommands = new ArrayDeque<DriverCommand>();
+		private int lines = 0;
+
+		public void run() {
+			try {
+				Iterator<String> i = source.iterator();
+				while (!stopped && i.hasNext()) {
+					parser.parse(i.next(), lineCommands);
+					lines++;
+
+					boolean barrier = false;
+					for (DriverCommand command : lineCommands) {
+						barrier |= query.track(command);
+					}
+					pending.commands.addAll(lineCommands);
+					lineCommands.clear();
+					pending.lines++;
+
+					if (barrier) {
+						sync();
+					} else if (pending.lines >= BATCH_LINES || ring.isEmpty()) {
+						// Hand over early while the machine is waiting for work.
+						publish();
+					}
+				}
+				if (!stopped) {
+					publish();
+					ring.put(END);
+				}
+			} catch (InterruptedException e) {
+				// Stopped.
+			} catch (Stopped e) {
+				// Stopped while the parser waited for the position.
+			} catch (RuntimeException e) {
+				Base.logger.log(Level.SEVERE, "Error parsing ahead, ending build", e);
+				// Run the lines before the bad one, then end the build as failed.
+				lineCommands.clear();
+				try {
+					publish();
+					ring.put(new ParseError(lines + 1, e));
+				} catch (InterruptedException ie) {
+					// Stopped.
+				}
+			}
+		}
+	}
+
+	private void publish() throws InterruptedException {
+		if (pending.lines > 0 || !pending.commands.isEmpty()) {
+			ring.put(pending);
+			pending = new Batch();
+		}
+	}
+
+	// Wait for the machine to run everything parsed so far, and take its position.
+	private void sync() throws InterruptedException {
+		publish();
+		Sync sync = new Sync();
+		ring.put(sync);
+		sync.done.await();
+		query.setPosition(sync.position);
+	}
+
+	/**
+	 * Answers the parser's questions from the driver, except for the position,
+	 * which is followed through the commands parsed so far. Only the machine
+	 * thread talks to the machine.
+	 */
+	private class ParsedQuery implements DriverQueryInterface, MultiTool {
+		private final DriverQueryInterface machine = (DriverQueryInterface) driver;
+		private final Point5d position = new Point5d();
+		// false until the machine has reported its position
+		private boolean known = false;
+
+		void setPosition(Point5d p) {
+			position.set(p);
+			known = true;
+		}
+
+		/**
+		 * Follow the position through a parsed command.
+		 * @return true if the parser has to wait for the machine to run the command
+		 */
+		boolean track(DriverCommand command) {
+			if (command instanceof QueuePoint) {
+				position.set(((QueuePoint) command).getDestination());
+			} else if (command instanceof QueueArc) {
+				position.set(((QueueArc) command).getDestination());
+			} else if (command instanceof SetCurrentPosition) {
+				position.set(((SetCurrentPosition) command).getPoint());
+				known = true;
+			} else if (CommandCodec.isPositionBarrier(command)) {
+				known = false;
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public void getCurrentPosition(Point5d p) {
+			if (!known) {
+				// Only at the start of the build: nothing has moved the machine yet.
+				try {
+					sync();
+				} catch (InterruptedException e) {
+					throw new Stopped();
+				}
+			}
+			p.set(position);
+		}
+
+		@Override
+		public Point5d getCurrentPosition(boolean b) {
+			Point5d p = new Point5d();
+			getCurrentPosition(p);
+			return p;
+		}
+
+		@Override
+		public Point3d getOffset(int i) { return machine.getOffset(i); }
+		@Override
+		public Point5d getMaximumFeedrates() { return machine.getMaximumFeedrates(); }
+		@Override
+		public double getSpindleRPM() { return machine.getSpindleRPM(); }
+		@Override
+		public double getMotorRPM() { return machine.getMotorRPM(); }
+		@Override
+		public int getMotorSpeedPWM() { return machine.getMotorSpeedPWM(); }
+		@Override
+		public double getTemperature() { return machine.getTemperature(); }
+		@Override
+		public double getTemperatureSetting() { return machine.getTemperatureSetting(); }
+		@Override
+		public double getPlatformTemperature() { return machine.getPlatformTemperature(); }
+		@Override
+		public double getPlatformTemperatureSetting() { return machine.getPlatformTemperatureSetting(); }
+		@Override
+		public boolean isPassthroughDriver() { return machine.isPassthroughDriver(); }
+		@Override
+		public Version getVersion() { return machine.getVersion(); }
+		@Override
+		public Version getPreferredVersion() { return machine.getPreferredVersion(); }
+
+		// The parser checks for MultiTool on its driver.
+		@Override
+		public boolean toolsCanBeReindexed() {
+			return driver instanceof MultiTool && ((MultiTool) driver).toolsCanBeReindexed();
+		}
+		@Override
+		public boolean setConnectedToolIndex(int index) {
+			return driver instanceof MultiTool && ((MultiTool) driver).setConnectedToolIndex(index);
+		}
+		@Override
+		public boolean supportsSimultaneousTools() {
+			return driver instanceof MultiTool && ((MultiTool) driver).supportsSimultaneousTools();
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package replicatorg.machine.builder;
+
+import java.io.IOException;
+import java.util.logging.Level;
+
+import javax.swing.JOptionPane;
+
+import replicatorg.app.Base;
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.DriverQueryInterface;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.StopException;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.machine.Machine.JobTarget;
+import replicatorg.model.CompiledJob;
+
+/**
+ * Machine builder for a CompiledJob: the commands are read from the file and
+ * run on the driver, without parsing.
+ * @author kshoji
+ *
+ */
+public class Replay implements MachineBuilder {
+
+	public enum State {
+		RUNNING,
+		WAITING_FOR_MACHINE_FINISH,
+		FINISHED
+	}
+
+	CompiledJob job;
+	CompiledJob.Reader reader;
+
+	Driver driver;
+
+	// The command being run, kept for a retry.
+	DriverCommand current = null;
+
+	State state;
+
+	public Replay(Driver driver, CompiledJob job) throws IOException {
+		this.driver = driver;
+		this.job = job;
+
+		if (((DriverQueryInterface) driver).isPassthroughDriver()) {
+			throw new IOException("Compiled jobs can't be built with a passthrough driver");
+		}
+		reader = job.open((DriverQueryInterface) driver);
+
+		state = State.RUNNING;
+	}
+
+	/**
+	 * Stop reading the job.
+	 */
+	public void close() {
+		reader.close();
+	}
+
+	@Override
+	public boolean finished() {
+		return (state == State.FINISHED);
+	}
+
+	// Run the commands of the next line on the driver
+	@Override
+	public void runNext() {
+		if (state == State.FINISHED) {
+			return;
+		}
+		if (state == State.WAITING_FOR_MACHINE_FINISH) {
+			if (driver.isFinished()) {
+				state = State.FINISHED;
+			}
+			return;
+		}
+
+		// Check for any driver errors
+		if (driver.hasError()) {
+			Base.logger.severe("Driver reported an error, aborting build");
+			return;
+		}
+
+		try {
+			int line = reader.getLinesRead();
+			while (reader.getLinesRead() == line) {
+				if (current == null) {
+					current = reader.next();
+					if (current == null) {
+						close();
+						state = driver.isFinished() ? State.FINISHED : State.WAITING_FOR_MACHINE_FINISH;
+						return;
+					}
+				}
+				current.run(driver);
+				current = null;
+			}
+		} catch (IOException e) {
+			Base.logger.log(Level.SEVERE, "Error reading " + job.getFile().getName() + ", ending build", e);
+			finish();
+		} catch (RetryException r) {
+			// Keep the command; it is retried on the next go-round.
+			Base.logger.log(Level.FINE,"Message delivery failed, retrying");
+		} catch (StopException e) {
+			switch (e.getType()) {
+			case UNCONDITIONAL_HALT:
+				JOptionPane.showMessageDialog(null, e.getMessage(),
+						"Unconditional halt: build ended", JOptionPane.INFORMATION_MESSAGE);
+				finish();
+				break;
+			case PROGRAM_END:
+				JOptionPane.showMessageDialog(null, e.getMessage(),
+						"Program end: Build ended", JOptionPane.INFORMATION_MESSAGE);
+				finish();
+				break;
+			case OPTIONAL_HALT:
+				int result = JOptionPane.showConfirmDialog(null, e.getMessage(),
+						"Optional halt: Continue build?", JOptionPane.YES_NO_OPTION);
+
+				if (result == JOptionPane.YES_OPTION) {
+					current = null;
+				} else {
+					finish();
+				}
+				break;
+			case PROGRAM_REWIND:
+				JOptionPane.showMessageDialog(null, e.getMessage(),
+						"Program rewind: Build ended", JOptionPane.INFORMATION_MESSAGE);
+				finish();
+				break;
+			}
+		}
+	}
+
+	private void finish() {
+		close();
+		state = State.FINISHED;
+	}
+
+	public int getLinesTotal() {
+		return job.getLineCount();
+	}
+	public int getLinesProcessed() {
+		return reader.getLinesRead();
+	}
+
+	@Override
+	public boolean isInteractive() {
+		return true;
+	}
+
+	@Override
+	public JobTarget getTarget() {
+		return JobTarget.MACHINE;
+	}
+}
@@ -0,0 +1,374 @@
+package replicatorg.machine.builder;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.app.GCodeParser;
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.DriverQueryInterface;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.StopException;
+import replicatorg.drivers.commands.CommandPool;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.drivers.commands.QueuePoint;
+import replicatorg.drivers.commands.QueueRelativePoint;
+import replicatorg.machine.Machine.JobTarget;
+import replicatorg.util.Point5d;
+
+/**
+ * Machine builder for an open-ended stream of gcode lines or driver commands.
+ * Other threads append to the stream through a bounded queue, and the build
+ * stays running until the stream is closed. Unlike a Direct build, the job is
+ * never padded with warmup/cooldown code, never estimated, and the tracked
+ * position is kept valid between appended commands.
+ * @author kshoji
+ *
+ */
+public class Streaming implements MachineBuilder {
+
+	public enum State {
+		RUNNING,
+		FINISHED
+	}
+
+	/** Default number of lines or commands that may be waiting in the stream. */
+	public static final int DEFAULT_CAPACITY = 64;
+
+	// How long runNext() waits for new input before handing control back to the machine thread.
+	private static final long POLL_MILLIS = 10;
+
+	/**
+	 * Notified on the machine thread when a flush has cleared the machine's
+	 * command queue, with the position the machine stopped at, or null if the
+	 * machine couldn't be asked.
+	 */
+	public interface FlushListener {
+		public void flushed(long flush, Point5d position);
+	}
+
+	// Marks where flush() was called; everything queued before it is dropped.
+	private static class Flush {
+		final long sequence;
+
+		Flush(long sequence) {
+			this.sequence = sequence;
+		}
+	}
+
+	// Marks where barrier() was called.
+	private static class Barrier {
+		final long sequence;
+
+		Barrier(long sequence) {
+			this.sequence = sequence;
+		}
+	}
+
+	// Pending input: either a gcode line (String), a DriverCommand, a Flush or a Barrier.
+	BlockingQueue<Object> input;
+
+	volatile boolean flushRequested = false;
+	private final AtomicLong flushSequence = new AtomicLong(0);
+	// The last barrier appended, and the last one the machine has finished.
+	private volatile long barrierIssued = 0;
+	private volatile long barrierPassed = 0;
+	// A barrier reached in the stream, waiting for the machine to finish.
+	private Barrier waiting = null;
+	volatile FlushListener flushListener = null;
+
+	int linesProcessed;
+
+	Driver driver;
+	GCodeParser parser;
+	Queue<DriverCommand> driverQueue;
+	CommandPool commandPool;
+	// True if the commands in driverQueue came from a motion entry.
+	boolean runningMotion = false;
+
+	volatile boolean closed = false;
+
+	volatile State state;
+
+	public Streaming(Driver driver, int capacity) {
+		this.driver = driver;
+
+		input = new ArrayBlockingQueue<Object>(capacity);
+		linesProcessed = 0;
+
+		// The parser lives as long as the stream, so modal state (units,
+		// absolute/relative positioning, offsets) carries over between lines.
+		parser = new GCodeParser();
+		driverQueue = new ArrayDeque<DriverCommand>();
+		parser.init((DriverQueryInterface) driver);
+
+		// Reuse the feedrate and move commands once they have been run.
+		commandPool = new CommandPool();
+		parser.setCommandPool(commandPool);
+
+		state = State.RUNNING;
+	}
+
+	/**
+	 * Append a line of gcode to the stream, if there is room for it.
+	 * @return false if the stream is closed or full
+	 */
+	public boolean offer(String line) {
+		if (closed) {
+			return false;
+		}
+		return input.offer(line);
+	}
+
+	/**
+	 * Append a driver command to the stream, if there is room for it.
+	 * @return false if the stream is closed or full
+	 */
+	public boolean offer(DriverCommand command) {
+		if (closed) {
+			return false;
+		}
+		return input.offer(command);
+	}
+
+	/**
+	 * Append a line of gcode to the stream, waiting for room if necessary.
+	 * @return false if the stream is closed
+	 */
+	public boolean put(String line) throws InterruptedException {
+		return putEntry(line);
+	}
+
+	/**
+	 * Append a driver command to the stream, waiting for room if necessary.
+	 * @return false if the stream is closed
+	 */
+	public boolean put(DriverCommand command) throws InterruptedException {
+		return putEntry(command);
+	}
+
+	private boolean putEntry(Object entry) throws InterruptedException {
+		while (!closed) {
+			if (input.offer(entry, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Drop the moves not yet run, including the commands already queued on
+	 * the machine, which stops the current motion. Only the moves appended
+	 * after the last entry of any other kind are dropped; gcode lines and other
+	 * commands (a homing sequence, say) are kept and run before the flush.
+	 * Anything appended after this call is run normally. The machine position
+	 * is reconciled before the next move.
+	 * <p>
+	 * The flush skips any moves waiting for room on the machine, so it is
+	 * sent as soon as the packet in progress is answered.
+	 * <p>
+	 * Call this from the thread appending to the stream, so that nothing is
+	 * appended while the stream is sorted out.
+	 * <p>
+	 * A flush needs a driver that can stop motion without aborting, and isn't
+	 * done until the machine has finished everything before the last barrier.
+	 * Otherwise the queued moves are left to run out.
+	 * @return a number identifying this flush to the FlushListener, or -1 if
+	 * the stream is closed or can't be flushed now
+	 */
+	public long flush() {
+		if (closed || !canFlush()) {
+			return -1;
+		}
+		List<Object> pending = new ArrayList<Object>(input.size());
+		input.drainTo(pending);
+		int keep = pending.size();
+		while (keep > 0 && isMotion(pending.get(keep - 1))) {
+			keep--;
+		}
+		for (int i = 0; i < keep; i++) {
+			input.offer(pending.get(i));
+		}
+
+		long sequence = flushSequence.incrementAndGet();
+		flushRequested = true;
+		if (!input.offer(new Flush(sequence))) {
+			flushRequested = false;
+			return -1;
+		}
+		return sequence;
+	}
+
+	/**
+	 * @return true if flush() would clear the machine's queue now
+	 */
+	public boolean canFlush() {
+		return driver.hasSoftStop() && barrierPassed >= barrierIssued;
+	}
+
+	/**
+	 * Append a barrier: until the machine has finished everything appended
+	 * before it, nothing after it is run and the stream can't be flushed. Use
+	 * this after commands that mustn't be cut short, such as homing.
+	 * @return false if the stream is closed or full
+	 */
+	public boolean barrier() {
+		if (closed) {
+			return false;
+		}
+		long sequence = flushSequence.incrementAndGet();
+		barrierIssued = sequence;
+		if (!input.offer(new Barrier(sequence))) {
+			barrierIssued = barrierPassed;
+			return false;
+		}
+		return true;
+	}
+
+	private static boolean isMotion(Object entry) {
+		return entry instanceof QueueRelativePoint || entry instanceof QueuePoint;
+	}
+
+	public void setFlushListener(FlushListener listener) {
+		flushListener = listener;
+	}
+
+	/**
+	 * Stop accepting input. Anything already in the stream is still run, after
+	 * which the build finishes.
+	 */
+	public void close() {
+		closed = true;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public boolean finished() {
+		return (state == State.FINISHED);
+	}
+
+	// Run the next line or command on the driver
+	@Override
+	public void runNext() {
+		// Check for any driver errors
+		if (driver.hasError()) {
+			Base.logger.severe("Driver reported an error, aborting stream");
+			return;
+		}
+
+		// Moves waiting for room on the machine were queued before the flush.
+		if (flushRequested && runningMotion) {
+			driverQueue.clear();
+		}
+
+		// Hold everything else back until the machine is done with what came before the barrier.
+		if (waiting != null) {
+			if (!closed && !driver.isFinished()) {
+				return;
+			}
+			barrierPassed = waiting.sequence;
+			waiting = null;
+		}
+
+		// Fetch more work unless we are retrying the commands of the last entry.
+		if (driverQueue.isEmpty()) {
+			Object next;
+			try {
+				next = input.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				// Let the machine thread see the interruption.
+				Thread.currentThread().interrupt();
+				return;
+			}
+
+			if (next == null) {
+				if (closed && input.isEmpty()) {
+					state = State.FINISHED;
+				}
+				return;
+			}
+
+			if (next instanceof Flush) {
+				flushRequested = false;
+				// Clear the machine's command queue; this also invalidates the position,
+				// so ask the machine where it stopped.
+				driver.stop(false);
+				Point5d position = driver.getCurrentPosition(false);
+				if (driver.positionLost()) {
+					// Just a zero position, not where the machine is.
+					position = null;
+				}
+				FlushListener listener = flushListener;
+				if (listener != null) {
+					listener.flushed(((Flush) next).sequence, position);
+				}
+				return;
+			}
+
+			if (next instanceof Barrier) {
+				waiting = (Barrier) next;
+				return;
+			}
+
+			linesProcessed++;
+			runningMotion = isMotion(next);
+
+			if (next instanceof DriverCommand) {
+				driverQueue.add((DriverCommand) next);
+			} else {
+				parser.parse((String) next, driverQueue);
+			}
+		}
+
+		try {
+			// Run the commands on the machine.
+			while(!driverQueue.isEmpty()) {
+				driverQueue.peek().run(driver);
+				commandPool.recycle(driverQueue.remove());
+			}
+		} catch (RetryException r) {
+			// Leave the command at the head of the queue; it is retried on the next go-round.
+			Base.logger.log(Level.FINE,"Message delivery failed, retrying");
+		} catch (StopException e) {
+			// Nobody is watching a stream, so don't pop up any dialogs here.
+			if (e.getType() == StopException.StopType.OPTIONAL_HALT) {
+				driverQueue.remove();
+			} else {
+				Base.logger.info("Stream ended by " + e.getType().toString());
+				close();
+				input.clear();
+				driverQueue.clear();
+				state = State.FINISHED;
+			}
+		}
+	}
+
+	/** The stream has no end, so report what has been queued so far. */
+	public int getLinesTotal() {
+		return linesProcessed + input.size();
+	}
+
+	public int getLinesProcessed() {
+		return linesProcessed;
+	}
+
+	@Override
+	public boolean isInteractive() {
+		return true;
+	}
+
+	@Override
+	public JobTarget getTarget() {
+		return JobTarget.MACHINE;
+	}
+}
@@ -56,6 +56,8 @@ public class MachineModel
 	//feedrate information
 	private Point5d maximumFeedrates;
 	private Point5d homingFeedrates;
+	// mm/s^2; 0 for axes that accelerate at once
+	private Point5d accelerations;
 	private Point5d stepsPerMM;
 	
 	//our drive status
@@ -87,11 +89,15 @@ public class MachineModel
 		maximum = new Point5d();
 		maximumFeedrates = new Point5d();
 		homingFeedrates = new Point5d();
+		accelerations = new Point5d();
 		stepsPerMM = new Point5d(1, 1, 1, 1, 1); //use ones, because we divide by this!
 		
 		currentTool.set(nullTool);
 	}
 	
+	/** @return the xml config the model was loaded from, or null */
+	public Node getXML() { return xml; }
+
 	//load data from xml config
 	public void loadXML(Node node)
 	{
@@ -128,6 +134,7 @@ public class MachineModel
 						double length = 0.0;
 						double maxFeedrate = 0.0;
 						double homingFeedrate = 0.0;
+						double acceleration = 0.0;
 						double stepspermm = 1.0;
 						Endstops endstops = Endstops.NONE;
 						//if values are missing, ignore them.
@@ -143,6 +150,9 @@ public class MachineModel
 							// If the homing feedrate is not available, use the maximum feedrate instead
 							homingFeedrate = maxFeedrate;
 						}
+						try {
+						 	acceleration = Double.parseDouble(XML.getAttributeValue(axis, "acceleration"));
+						} catch (Exception e) {}
 						try {
 						 	String spmm = XML.getAttributeValue(axis, "stepspermm");
 						 	if (spmm == null) spmm = XML.getAttributeValue(axis, "scale"); // Backwards compatibility
@@ -159,6 +169,7 @@ public class MachineModel
 						maximum.setAxis(id,length);
 						maximumFeedrates.setAxis(id,maxFeedrate);
 						homingFeedrates.setAxis(id,homingFeedrate);
+						accelerations.setAxis(id,acceleration);
 						stepsPerMM.setAxis(id,stepspermm);
 						this.endstops.put(id, endstops);
 						Base.logger.fine("Loaded axis " + id.name()
@@ -454,6 +465,11 @@ public class MachineModel
   public Point5d getHomingFeedrates() {
 	    return homingFeedrates;
 	  }
+
+  /** returns the acceleration of each axis in mm/s^2, 0 where none is configured */
+  public Point5d getAccelerations() {
+	  return accelerations;
+  }
   
   /** returns the endstop configuration for the givin axis */
   public Endstops getEndstops(AxisId axis)
@@ -0,0 +1,149 @@
+package replicatorg.model;
+
+import java.awt.geom.Rectangle2D;
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import replicatorg.drivers.DriverQueryInterface;
+import replicatorg.drivers.commands.CommandCodec;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.util.Point5d;
+
+/**
+ * A job compiled to driver commands by JobCompiler, so that it can be built
+ * again without parsing. The file holds a header with the line count, the
+ * estimated build time and the bounds, followed by the commands as written
+ * by CommandCodec.
+ * @author kshoji
+ *
+ */
+public class CompiledJob {
+	private static final int MAGIC = 0x52474A31; // "RGJ1"
+	private static final int VERSION = 1;
+
+	/** File name extension for compiled jobs. */
+	public static final String EXTENSION = ".rgj";
+
+	/** Size of the header, in bytes. */
+	public static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 4 * 8;
+
+	private final File file;
+	private final int lineCount;
+	private final double estimatedBuildTime;
+	private final Rectangle2D.Double bounds;
+
+	/**
+	 * Open a compiled job, reading its header.
+	 * @throws IOException if the file is not a compiled job
+	 */
+	public CompiledJob(File file) throws IOException {
+		this.file = file;
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException(file.getName() + " is not a compiled job");
+			}
+			lineCount = in.readInt();
+			estimatedBuildTime = in.readDouble();
+			bounds = new Rectangle2D.Double(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+		} finally {
+			in.close();
+		}
+	}
+
+	static void writeHeader(DataOutput out, int lineCount, double estimatedBuildTime, Rectangle2D.Double bounds) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(lineCount);
+		out.writeDouble(estimatedBuildTime);
+		out.writeDouble(bounds.x);
+		out.writeDouble(bounds.y);
+		out.writeDouble(bounds.width);
+		out.writeDouble(bounds.height);
+	}
+
+	public File getFile() { return file; }
+
+	/** @return the number of gcode lines the job was compiled from */
+	public int getLineCount() { return lineCount; }
+
+	/** @return the build time estimated when the job was compiled */
+	public double getEstimatedBuildTime() { return estimatedBuildTime; }
+
+	/** @return the XY bounds of the job, in mm, leaving out axes that move relative to where the job starts */
+	public Rectangle2D.Double getBounds() { return bounds; }
+
+	/**
+	 * Start reading the commands of the job.
+	 * @param driver asked for its position when the job moves relative to where homing left the machine
+	 */
+	public Reader open(DriverQueryInterface driver) throws IOException {
+		return new Reader(driver);
+	}
+
+	/**
+	 * Reads the commands of a job in order. Points relative to the machine's
+	 * position are resolved as they are read, so each command must have run
+	 * before the next one is read.
+	 */
+	public class Reader implements CommandCodec.Origin {
+		private final DataInputStream in;
+		private final DriverQueryInterface driver;
+		private Point5d origin = null;
+		private int linesRead = 0;
+
+		Reader(DriverQueryInterface driver) throws IOException {
+			this.driver = driver;
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			in.skipBytes(HEADER_SIZE);
+		}
+
+		/**
+		 * @return the next command, or null at the end of the job
+		 */
+		public DriverCommand next() throws IOException {
+			while (true) {
+				int opcode = in.read();
+				switch (opcode) {
+				case -1:
+				case CommandCodec.JOB_END:
+					return null;
+				case CommandCodec.LINE_END:
+					linesRead++;
+					break;
+				case CommandCodec.SYNC:
+					// The machine decides where it is now; ask it when a point needs it.
+					origin = null;
+					break;
+				default:
+					return CommandCodec.read((DataInput) in, opcode, this);
+				}
+			}
+		}
+
+		public Point5d getOrigin() {
+			if (origin == null) {
+				origin = driver.getCurrentPosition(false);
+			}
+			return origin;
+		}
+
+		/** @return the number of gcode lines whose commands have all been read */
+		public int getLinesRead() {
+			return linesRead;
+		}
+
+		public void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// Nothing to do.
+			}
+		}
+	}
+}
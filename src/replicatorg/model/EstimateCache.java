@@ -0,0 +1,392 @@
+package replicatorg.model;
+
+import java.awt.geom.Rectangle2D;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Properties;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import replicatorg.app.Base;
+import replicatorg.app.GCodeParser;
+import replicatorg.machine.model.MachineModel;
+
+/**
+ * Keeps build time estimates on disk, so a job that is built again on the same
+ * machine needn't be estimated again.
+ *
+ * An estimate is filed under a hash of the job's contents and a fingerprint of
+ * the machine's config, so a change to either one simply misses. For files, the
+ * hash is kept along with the file's size and modification time, and is only
+ * worked out again when one of those changes; then it is worked out while the
+ * file is read for the estimate (see hashWhileReading), so it is read once.
+ * @author kshoji
+ *
+ */
+public class EstimateCache {
+	// Bump this when the estimator changes, so old estimates are passed over.
+	private static final int VERSION = 3;
+
+	// The least recently used estimates beyond this many are deleted.
+	private static final int MAX_ENTRIES = 256;
+
+	private static final String SUFFIX = ".est";
+	private static final String INDEX = "files.properties";
+
+	/** A cached estimate. */
+	public static class Estimate {
+		private final double buildTime;
+		private final Rectangle2D.Double bounds;
+
+		public Estimate(double buildTime, Rectangle2D.Double bounds) {
+			this.buildTime = buildTime;
+			this.bounds = bounds;
+		}
+
+		/** @return the estimated build time, in millis */
+		public double getBuildTime() { return buildTime; }
+
+		/** @return the XY bounds of the job, in mm */
+		public Rectangle2D.Double getBounds() { return bounds; }
+	}
+
+	/**
+	 * The lines of a job, hashed as they are read.
+	 */
+	public class Hashing implements Iterable<String> {
+		private final GCodeSource source;
+		private final LineDigest digest = new LineDigest();
+
+		Hashing(GCodeSource source) {
+			this.source = source;
+		}
+
+		public Iterator<String> iterator() {
+			final Iterator<String> lines = source.iterator();
+			return new Iterator<String>() {
+				public boolean hasNext() {
+					return lines.hasNext();
+				}
+
+				public String next() {
+					String line = lines.next();
+					digest.update(line);
+					return line;
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		/**
+		 * @return the key of the job on the given machine; only once every line has been read
+		 */
+		public String getKey(MachineModel model) {
+			String hash = digest.finish();
+			if (source instanceof MappedFileSource) {
+				remember((MappedFileSource) source, hash);
+			}
+			return hash + "-" + getFingerprint(model);
+		}
+	}
+
+	// Hashes lines as they would be in a file, one after another.
+	private static class LineDigest {
+		private final MessageDigest digest = newDigest();
+		private final byte[] buffer = new byte[8192];
+		private int used = 0;
+
+		void update(String line) {
+			int length = line.length();
+			for (int i = 0; i <= length; i++) {
+				if (used == buffer.length) {
+					digest.update(buffer, 0, used);
+					used = 0;
+				}
+				// The lines are ISO-8859-1, so each char is one byte.
+				buffer[used++] = (i < length) ? (byte) line.charAt(i) : (byte) '\n';
+			}
+		}
+
+		String finish() {
+			digest.update(buffer, 0, used);
+			used = 0;
+			return toHex(digest.digest());
+		}
+	}
+
+	private static EstimateCache defaultCache = null;
+
+	/**
+	 * @return the cache in the user's directory, or null if it has been turned off
+	 */
+	public static synchronized EstimateCache getDefault() {
+		if (!Base.preferences.getBoolean("build.estimate_cache", true)) {
+			return null;
+		}
+		if (defaultCache == null) {
+			defaultCache = new EstimateCache(new File(Base.getUserDirectory(), "estimates"));
+		}
+		return defaultCache;
+	}
+
+	private final File dir;
+
+	// Path of each file seen -> "size modified hash".
+	private final Properties files = new Properties();
+
+	public EstimateCache(File dir) {
+		this.dir = dir;
+		dir.mkdirs();
+
+		File index = new File(dir, INDEX);
+		if (index.exists()) {
+			try {
+				FileInputStream in = new FileInputStream(index);
+				try {
+					files.load(in);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				Base.logger.warning("Couldn't read the estimate cache index: " + e.getMessage());
+				files.clear();
+			}
+		}
+	}
+
+	/**
+	 * Work out the key a job's estimate is filed under on the given machine.
+	 * A job in memory is hashed here. A file is only looked up by its size and
+	 * modification time; if it hasn't been seen like that, this returns null, and
+	 * the key is worked out while it is read (see hashWhileReading).
+	 */
+	public String getKey(GCodeSource source, MachineModel model) {
+		String hash = getContentHash(source);
+		if (hash == null) {
+			return null;
+		}
+		return hash + "-" + getFingerprint(model);
+	}
+
+	/**
+	 * @return the job's lines, hashed on the way for Hashing.getKey()
+	 */
+	public Hashing hashWhileReading(GCodeSource source) {
+		return new Hashing(source);
+	}
+
+	/**
+	 * @return the estimate filed under the key, or null if there is none
+	 */
+	public synchronized Estimate get(String key) {
+		File entry = new File(dir, key + SUFFIX);
+		if (!entry.exists()) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(entry));
+			try {
+				double buildTime = in.readDouble();
+				Rectangle2D.Double bounds = new Rectangle2D.Double(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+				// Keep recently used estimates around.
+				entry.setLastModified(System.currentTimeMillis());
+				return new Estimate(buildTime, bounds);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Base.logger.warning("Dropping unreadable estimate " + entry.getName() + ": " + e.getMessage());
+			entry.delete();
+			return null;
+		}
+	}
+
+	public synchronized void put(String key, double buildTime, Rectangle2D.Double bounds) {
+		File entry = new File(dir, key + SUFFIX);
+		try {
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(entry));
+			try {
+				out.writeDouble(buildTime);
+				out.writeDouble(bounds.x);
+				out.writeDouble(bounds.y);
+				out.writeDouble(bounds.width);
+				out.writeDouble(bounds.height);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			Base.logger.warning("Couldn't save estimate " + entry.getName() + ": " + e.getMessage());
+			entry.delete();
+			return;
+		}
+		prune();
+	}
+
+	// Delete the least recently used estimates beyond MAX_ENTRIES.
+	private void prune() {
+		File[] entries = dir.listFiles();
+		if (entries == null) {
+			return;
+		}
+		int count = 0;
+		for (File entry : entries) {
+			if (entry.getName().endsWith(SUFFIX)) {
+				entries[count++] = entry;
+			}
+		}
+		if (count <= MAX_ENTRIES) {
+			return;
+		}
+		entries = Arrays.copyOf(entries, count);
+		Arrays.sort(entries, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long difference = b.lastModified() - a.lastModified();
+				return difference > 0 ? 1 : (difference < 0 ? -1 : 0);
+			}
+		});
+		for (int i = MAX_ENTRIES; i < count; i++) {
+			entries[i].delete();
+		}
+	}
+
+	// The hash of a file seen before, or null.
+	private String getContentHash(GCodeSource source) {
+		if (!(source instanceof MappedFileSource)) {
+			return hashLines(source);
+		}
+
+		MappedFileSource fileSource = (MappedFileSource) source;
+		String stamp = getStamp(fileSource);
+		synchronized (this) {
+			String seen = files.getProperty(fileSource.getFile().getAbsolutePath());
+			if (seen != null && seen.startsWith(stamp)) {
+				return seen.substring(stamp.length());
+			}
+		}
+		return null;
+	}
+
+	private static String getStamp(MappedFileSource source) {
+		return source.getLength() + " " + source.getLastModified() + " ";
+	}
+
+	// Keep the hash of a file, until its size or modification time changes.
+	private void remember(MappedFileSource source, String hash) {
+		String path = source.getFile().getAbsolutePath();
+		String stamp = getStamp(source);
+		synchronized (this) {
+			if (files.size() >= MAX_ENTRIES) {
+				// Forget files that have gone away.
+				for (Object name : files.keySet().toArray()) {
+					if (!new File((String) name).exists()) {
+						files.remove(name);
+					}
+				}
+			}
+			files.setProperty(path, stamp + hash);
+			saveIndex();
+		}
+	}
+
+	private void saveIndex() {
+		File index = new File(dir, INDEX);
+		File temp = new File(dir, INDEX + ".tmp");
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				files.store(out, "Content hashes of estimated files");
+			} finally {
+				out.close();
+			}
+			// Replace the old index in one go, so it is never left half written.
+			index.delete();
+			if (!temp.renameTo(index)) {
+				throw new IOException("can't rename " + temp.getName());
+			}
+		} catch (IOException e) {
+			Base.logger.warning("Couldn't save the estimate cache index: " + e.getMessage());
+		}
+	}
+
+	private static String hashLines(GCodeSource source) {
+		LineDigest digest = new LineDigest();
+		for (String line : source) {
+			digest.update(line);
+		}
+		return digest.finish();
+	}
+
+	/**
+	 * A fingerprint of everything besides the job that goes into an estimate:
+	 * the machine's config, the arc and corner settings and the estimator's version.
+	 */
+	private static String getFingerprint(MachineModel model) {
+		MessageDigest digest = newDigest();
+		update(digest, "v" + VERSION + " arc " + GCodeParser.arcChordErrorMM
+				+ " junction " + Base.preferences.getDouble("build.estimate_junction_deviation", 0.05));
+		if (model.getXML() != null) {
+			update(digest, model.getXML());
+		}
+		return toHex(digest.digest());
+	}
+
+	private static void update(MessageDigest digest, Node node) {
+		update(digest, node.getNodeName());
+		if (node.getNodeValue() != null) {
+			update(digest, node.getNodeValue());
+		}
+		NamedNodeMap attributes = node.getAttributes();
+		if (attributes != null) {
+			for (int i = 0; i < attributes.getLength(); i++) {
+				update(digest, attributes.item(i));
+			}
+		}
+		NodeList children = node.getChildNodes();
+		for (int i = 0; i < children.getLength(); i++) {
+			update(digest, children.item(i));
+		}
+		// Marks the end of the children, so the tree's shape counts too.
+		digest.update((byte) 0);
+	}
+
+	private static void update(MessageDigest digest, String s) {
+		try {
+			digest.update(s.getBytes("UTF-8"));
+		} catch (IOException e) {
+			// UTF-8 is always there.
+		}
+		digest.update((byte) 0);
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			// Every JVM has SHA-1.
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+}
@@ -10,5 +10,8 @@ public interface GCodeSource extends Iterable<String> {
 	 */
 	Iterator<String> iterator();
 	
+	/**
+	 * @return the number of lines, or -1 if the length of the source isn't known
+	 */
 	int getLineCount();
 }
@@ -12,7 +12,6 @@ import java.util.Vector;
 public class GCodeSourceCollection implements GCodeSource {
 
 	final Vector<GCodeSource> sources; 
-	final int lineCount;
 	
 	public class GCodeSourceCollectionIterator implements Iterator<String> {
 		Vector<Iterator<String>> iterators;
@@ -21,7 +20,11 @@ public class GCodeSourceCollection implements GCodeSource {
 			iterators = new Vector<Iterator<String>>();
 			
 			for (GCodeSource source : sources) {
-				iterators.add(source.iterator());
+				Iterator<String> iterator = source.iterator();
+				// Skip empty sources, so hasNext() is only true if there is a line to come.
+				if (iterator.hasNext()) {
+					iterators.add(iterator);
+				}
 			}
 		}
 		
@@ -52,13 +55,6 @@ public class GCodeSourceCollection implements GCodeSource {
 	
 	public GCodeSourceCollection(Vector<GCodeSource> sources) {
 		this.sources = sources;
-		
-		// Count the total number of lines
-		int lineCount = 0;
-		for(GCodeSource source: this.sources) {
-			lineCount += source.getLineCount();
-		}
-		this.lineCount = lineCount;
 	}
 	
 	@Override
@@ -68,6 +64,15 @@ public class GCodeSourceCollection implements GCodeSource {
 
 	@Override
 	public int getLineCount() {
+		// Count the total number of lines; some sources only estimate theirs at first.
+		int lineCount = 0;
+		for(GCodeSource source: this.sources) {
+			int count = source.getLineCount();
+			if (count < 0) {
+				return -1;
+			}
+			lineCount += count;
+		}
 		return lineCount;
 	}
 
@@ -0,0 +1,207 @@
+package replicatorg.model;
+
+import java.awt.geom.Rectangle2D;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+
+import replicatorg.app.GCodeParser;
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.StopException;
+import replicatorg.drivers.commands.CommandCodec;
+import replicatorg.drivers.commands.CommandPool;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.util.Point5d;
+
+/**
+ * Parses a job once and writes the resulting driver commands to a file, which
+ * can then be built any number of times without parsing (see CompiledJob).
+ * The estimate is worked out on the way.
+ *
+ * The parser works from the machine's position, which isn't known ahead of time
+ * at the start of a job or after homing. So the job is parsed twice, from two
+ * different made-up positions: axes that come out the same are absolute, and
+ * axes that move along with the made-up position are stored relative to
+ * wherever the machine really is when the job gets there.
+ *
+ * The estimate and bounds in the header come from the first pass. Moves along
+ * relative axes are timed from the made-up position, so the estimate is off by
+ * the travel to wherever the machine really starts. Relative axes are left out
+ * of the bounds, which then only cover the ends of the absolute moves.
+ * @author kshoji
+ *
+ */
+public class JobCompiler {
+	// The made-up positions of the two passes. As ORIGIN_A is 0, the relative
+	// axes of pass A are already offsets from the origin.
+	private static final double ORIGIN_A = 0.0;
+	private static final double ORIGIN_B = 1000.0;
+
+	private static final double EPSILON = 1e-6;
+
+	private static final int AXES = 5;
+
+	// One parse of the job, on its own estimator.
+	private static class Pass {
+		final EstimationDriver driver = new EstimationDriver();
+		final GCodeParser parser = new GCodeParser();
+		final Queue<DriverCommand> commands = new ArrayDeque<DriverCommand>();
+		// Gives each move its own point.
+		final CommandPool pool = new CommandPool();
+		final double origin;
+
+		Pass(MachineModel model, double origin) {
+			this.origin = origin;
+			driver.setMachine(model);
+			parser.init(driver);
+			parser.setCommandPool(pool);
+			sync();
+		}
+
+		void sync() {
+			try {
+				driver.setCurrentPosition(new Point5d(origin, origin, origin, origin, origin));
+			} catch (RetryException e) {
+				// The estimator never asks for a retry.
+			}
+		}
+
+		// Run the commands on the estimator, so the parser sees their effects.
+		boolean run() {
+			boolean barrier = false;
+			for (DriverCommand command : commands) {
+				try {
+					command.run(driver);
+				} catch (RetryException r) {
+					// Ignore.
+				} catch (StopException e) {
+					// Ignore, as when estimating.
+				}
+				barrier |= CommandCodec.isPositionBarrier(command);
+			}
+			if (barrier) {
+				sync();
+			}
+			for (DriverCommand command : commands) {
+				pool.recycle(command);
+			}
+			commands.clear();
+			return barrier;
+		}
+	}
+
+	/**
+	 * Compile a job for the given machine.
+	 * @throws IOException if the file can't be written, or the job can't be compiled
+	 */
+	public static CompiledJob compile(GCodeSource source, MachineModel model, File file) throws IOException {
+		Pass a = new Pass(model, ORIGIN_A);
+		Pass b = new Pass(model, ORIGIN_B);
+
+		int lines = 0;
+		// The ends of the moves in absolute X and Y, and whether any move was relative in X or Y.
+		double[] min = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+		double[] max = { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		boolean relativeXY = false;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			// Filled in at the end.
+			CompiledJob.writeHeader(out, 0, 0, a.driver.getBounds());
+
+			for (String line : source) {
+				lines++;
+				a.parser.parse(line, a.commands);
+				b.parser.parse(line, b.commands);
+				if (a.commands.size() != b.commands.size()) {
+					throw new IOException("Line " + lines + " can't be compiled, it depends on where the machine is: " + line);
+				}
+
+				Iterator<DriverCommand> other = b.commands.iterator();
+				for (DriverCommand command : a.commands) {
+					int relativeAxes = getRelativeAxes(command, other.next());
+					if (relativeAxes < 0) {
+						throw new IOException("Line " + lines + " can't be compiled, it depends on where the machine is: " + line);
+					}
+					CommandCodec.write(out, command, relativeAxes);
+
+					Point5d point = CommandCodec.getPoint(command);
+					if (point != null && CommandCodec.isMove(command)) {
+						for (int axis = 0; axis < 2; axis++) {
+							if ((relativeAxes & (1 << axis)) != 0) {
+								relativeXY = true;
+							} else {
+								min[axis] = Math.min(min[axis], point.get(axis));
+								max[axis] = Math.max(max[axis], point.get(axis));
+							}
+						}
+					}
+				}
+
+				boolean barrier = a.run();
+				b.run();
+				if (barrier) {
+					// The machine decides where it is from here on.
+					out.writeByte(CommandCodec.SYNC);
+				}
+				out.writeByte(CommandCodec.LINE_END);
+			}
+			out.writeByte(CommandCodec.JOB_END);
+		} finally {
+			out.close();
+		}
+
+		RandomAccessFile header = new RandomAccessFile(file, "rw");
+		try {
+			// Without relative moves, the first pass's bounds are right, arcs and all.
+			Rectangle2D.Double bounds = relativeXY ? getBounds(min, max) : a.driver.getBounds();
+			CompiledJob.writeHeader(header, lines, a.driver.getBuildTime(), bounds);
+		} finally {
+			header.close();
+		}
+		return new CompiledJob(file);
+	}
+
+	private static Rectangle2D.Double getBounds(double[] min, double[] max) {
+		Rectangle2D.Double bounds = new Rectangle2D.Double();
+		if (min[0] <= max[0]) {
+			bounds.x = min[0];
+			bounds.width = max[0] - min[0];
+		}
+		if (min[1] <= max[1]) {
+			bounds.y = min[1];
+			bounds.height = max[1] - min[1];
+		}
+		return bounds;
+	}
+
+	// Returns the axes of the command's point that followed the made-up position, or -1 if
+	// the two passes disagree some other way.
+	private static int getRelativeAxes(DriverCommand a, DriverCommand b) {
+		if (a.getClass() != b.getClass()) {
+			return -1;
+		}
+		Point5d pointA = CommandCodec.getPoint(a);
+		if (pointA == null) {
+			return 0;
+		}
+		Point5d pointB = CommandCodec.getPoint(b);
+		int relativeAxes = 0;
+		for (int axis = 0; axis < AXES; axis++) {
+			double difference = pointB.get(axis) - pointA.get(axis);
+			if (Math.abs(difference - (ORIGIN_B - ORIGIN_A)) < EPSILON) {
+				relativeAxes |= 1 << axis;
+			} else if (Math.abs(difference) >= EPSILON) {
+				return -1;
+			}
+		}
+		return relativeAxes;
+	}
+}
@@ -0,0 +1,244 @@
+package replicatorg.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import replicatorg.app.Base;
+
+/**
+ * A GCodeSource that reads a file through a memory mapping, decoding each line
+ * only when it is asked for, so even very large jobs start at once and stay
+ * out of the heap. Lines end with '\n', '\r' or "\r\n", like BufferedReader.
+ *
+ * The lines are counted on a background thread; until that is done,
+ * getLineCount() returns an estimate from the start of the file.
+ * @author kshoji
+ *
+ */
+public class MappedFileSource implements GCodeSource {
+	// Each mapping covers at most this many bytes.
+	private static final int CHUNK_BITS = 30;
+	private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+	// Bytes sampled up front for the line count estimate.
+	private static final int SAMPLE_BYTES = 64 * 1024;
+
+	// The index keeps the offset of every INDEX_INTERVAL'th line.
+	private static final int INDEX_INTERVAL = 1024;
+
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	private final File file;
+	private final long length;
+	private final long lastModified;
+	private final MappedByteBuffer[] chunks;
+
+	private final int estimatedLines;
+
+	// Filled in by the indexing thread.
+	private volatile boolean indexed = false;
+	private volatile int indexedLines = 0;
+	private long[] checkpoints = new long[16];
+	private int checkpointCount = 0;
+
+	public MappedFileSource(File file) throws IOException {
+		this.file = file;
+		lastModified = file.lastModified();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			length = channel.size();
+			int count = (int) ((length + CHUNK_MASK) >>> CHUNK_BITS);
+			chunks = new MappedByteBuffer[count];
+			for (int i = 0; i < count; i++) {
+				long start = (long) i << CHUNK_BITS;
+				chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(length - start, 1L << CHUNK_BITS));
+			}
+		} finally {
+			// The mappings stay valid after the channel is closed.
+			raf.close();
+		}
+
+		estimatedLines = estimateLines();
+
+		Thread indexer = new Thread(new Runnable() {
+			public void run() {
+				buildIndex();
+			}
+		}, "Line index: " + file.getName());
+		indexer.setDaemon(true);
+		indexer.start();
+	}
+
+	private byte get(long offset) {
+		return chunks[(int) (offset >>> CHUNK_BITS)].get((int) (offset & CHUNK_MASK));
+	}
+
+	// Returns the offset of the next line after the one starting at offset.
+	private long skipLine(long offset) {
+		while (offset < length) {
+			byte b = get(offset++);
+			if (b == '\n') {
+				break;
+			}
+			if (b == '\r') {
+				if (offset < length && get(offset) == '\n') {
+					offset++;
+				}
+				break;
+			}
+		}
+		return offset;
+	}
+
+	private int estimateLines() {
+		long end = Math.min(length, SAMPLE_BYTES);
+		int lines = 0;
+		long offset = 0;
+		while (offset < end) {
+			offset = skipLine(offset);
+			lines++;
+		}
+		if (offset >= length) {
+			return lines;
+		}
+		return (int) Math.min(Integer.MAX_VALUE, (long) lines * length / offset);
+	}
+
+	private void buildIndex() {
+		long offset = 0;
+		int lines = 0;
+		try {
+			addCheckpoint(0);
+			while (offset < length) {
+				offset = skipLine(offset);
+				lines++;
+				if (lines % INDEX_INTERVAL == 0) {
+					// the checkpoint goes in before the lines are published
+					addCheckpoint(offset);
+					indexedLines = lines;
+				}
+			}
+			indexedLines = lines;
+			indexed = true;
+		} catch (RuntimeException e) {
+			Base.logger.warning("Could not index " + file.getName() + ": " + e.getMessage());
+		} catch (InternalError e) {
+			// The file was truncated under us, and the mapping went past its end; keep the estimate.
+			Base.logger.warning("Could not index " + file.getName() + ", it was cut short: " + e.getMessage());
+		}
+	}
+
+	private synchronized void addCheckpoint(long offset) {
+		if (checkpointCount == checkpoints.length) {
+			long[] grown = new long[checkpointCount * 2];
+			System.arraycopy(checkpoints, 0, grown, 0, checkpointCount);
+			checkpoints = grown;
+		}
+		checkpoints[checkpointCount++] = offset;
+	}
+
+	private synchronized long getCheckpoint(int index) {
+		return checkpoints[index];
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/** @return the size of the file when it was mapped, in bytes */
+	public long getLength() {
+		return length;
+	}
+
+	/** @return the modification time of the file when it was mapped */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @return true once getLineCount() is exact, rather than an estimate
+	 */
+	public boolean isLineCountExact() {
+		return indexed;
+	}
+
+	public int getLineCount() {
+		if (indexed) {
+			return indexedLines;
+		}
+		return Math.max(estimatedLines, indexedLines);
+	}
+
+	public Iterator<String> iterator() {
+		return new LineIterator(0);
+	}
+
+	/**
+	 * Returns an iterator starting at the given line. Lines already indexed are
+	 * found directly; the rest are skipped over.
+	 * @param line the first line, counted from 0
+	 */
+	public Iterator<String> iterator(int line) {
+		int checkpoint = Math.min(line, indexedLines) / INDEX_INTERVAL;
+		long offset = 0;
+		int skip = line;
+		if (checkpoint > 0) {
+			offset = getCheckpoint(checkpoint);
+			skip -= checkpoint * INDEX_INTERVAL;
+		}
+		while (skip-- > 0 && offset < length) {
+			offset = skipLine(offset);
+		}
+		return new LineIterator(offset);
+	}
+
+	private class LineIterator implements Iterator<String> {
+		private long offset;
+		private byte[] buffer = new byte[256];
+
+		LineIterator(long offset) {
+			this.offset = offset;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return offset < length;
+		}
+
+		@Override
+		public String next() {
+			if (offset >= length) {
+				throw new NoSuchElementException();
+			}
+			int count = 0;
+			while (offset < length) {
+				byte b = get(offset);
+				if (b == '\n' || b == '\r') {
+					offset = skipLine(offset);
+					break;
+				}
+				if (count == buffer.length) {
+					byte[] grown = new byte[count * 2];
+					System.arraycopy(buffer, 0, grown, 0, count);
+					buffer = grown;
+				}
+				buffer[count++] = b;
+				offset++;
+			}
+			return new String(buffer, 0, count, LATIN1);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package replicatorg.model;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import replicatorg.app.Base;
+
+/**
+ * A GCodeSource that reads lines as they arrive from a stream of unknown
+ * length: stdin, a named pipe, or a connection on a local TCP port. Nothing is
+ * kept after it has been handed out, and the lines can only be read once.
+ *
+ * Reading blocks until the next line arrives, so a build from a StreamSource
+ * always parses ahead of the machine (see ParseAhead).
+ * @author kshoji
+ *
+ */
+public class StreamSource implements GCodeSource {
+
+	// Opens the stream when the first line is wanted.
+	private static abstract class Opener {
+		abstract InputStream open() throws IOException;
+
+		// Wake up an open() waiting for the other end, from another thread.
+		void cancel() {
+		}
+	}
+
+	// Counts the bytes read through it.
+	private class CountingInputStream extends FilterInputStream {
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				bytesRead++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int count = super.read(buffer, offset, length);
+			if (count > 0) {
+				bytesRead += count;
+			}
+			return count;
+		}
+	}
+
+	private final String name;
+	private final Opener opener;
+
+	private volatile long bytesRead = 0;
+	private volatile InputStream stream = null;
+	private volatile boolean closed = false;
+	private boolean iterated = false;
+
+	private StreamSource(String name, Opener opener) {
+		this.name = name;
+		this.opener = opener;
+	}
+
+	/**
+	 * Read from an already open stream.
+	 */
+	public StreamSource(String name, final InputStream in) {
+		this(name, new Opener() {
+			public InputStream open() {
+				return in;
+			}
+		});
+	}
+
+	public static StreamSource fromStdin() {
+		return new StreamSource("stdin", System.in);
+	}
+
+	/**
+	 * Read from a file that is written while it is read, such as a named pipe.
+	 * The file is opened when the first line is wanted, as opening a pipe waits
+	 * for the writer. If the source is closed while it waits, the pipe is
+	 * opened for writing on a thread of its own, which lets the open go ahead
+	 * and end at once.
+	 */
+	public static StreamSource fromPipe(final File pipe) {
+		return new StreamSource(pipe.getName(), new Opener() {
+			// Guarded by this opener.
+			private boolean opening = false;
+			private boolean cancelled = false;
+
+			public InputStream open() throws IOException {
+				synchronized (this) {
+					if (cancelled) {
+						throw new IOException("closed");
+					}
+					opening = true;
+				}
+				try {
+					return new FileInputStream(pipe);
+				} finally {
+					synchronized (this) {
+						opening = false;
+						notifyAll();
+					}
+				}
+			}
+
+			void cancel() {
+				synchronized (this) {
+					cancelled = true;
+					if (!opening) {
+						return;
+					}
+				}
+				// Opening the writing end waits for the reader too, so it is
+				// never done on the caller's thread.
+				Thread waker = new Thread(new Runnable() {
+					public void run() {
+						wake();
+					}
+				}, "Wake up " + pipe.getName());
+				waker.setDaemon(true);
+				waker.start();
+			}
+
+			// Be the writer until the reader's open has gone through.
+			private void wake() {
+				try {
+					// Appending, so that a plain file is left as it is.
+					FileOutputStream writer = new FileOutputStream(pipe, true);
+					try {
+						synchronized (this) {
+							while (opening) {
+								wait();
+							}
+						}
+					} finally {
+						writer.close();
+					}
+				} catch (IOException e) {
+					// Nothing to do.
+				} catch (InterruptedException e) {
+					// Nothing to do.
+				}
+			}
+		});
+	}
+
+	/**
+	 * Read from the first connection to the given port on the loopback interface.
+	 * The port is bound at once, and the connection accepted when the first line
+	 * is wanted. Closing the source frees the port, even before a connection.
+	 */
+	public static StreamSource listen(int port) throws IOException {
+		final ServerSocket server = new ServerSocket(port, 1, InetAddress.getByName(null));
+		return new StreamSource("port " + port, new Opener() {
+			public InputStream open() throws IOException {
+				try {
+					Socket socket = server.accept();
+					return socket.getInputStream();
+				} finally {
+					server.close();
+				}
+			}
+
+			void cancel() {
+				try {
+					// Wakes up accept().
+					server.close();
+				} catch (IOException e) {
+					// Nothing to do.
+				}
+			}
+		});
+	}
+
+	/** The length of a stream isn't known. */
+	public int getLineCount() {
+		return -1;
+	}
+
+	/** @return the number of bytes read from the stream so far */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * Stop reading: the stream is closed, which also wakes up a read waiting for
+	 * input, or an open waiting for the other end.
+	 */
+	public void close() {
+		closed = true;
+		InputStream in = stream;
+		if (in == null) {
+			opener.cancel();
+		} else {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// Nothing to do.
+			}
+		}
+	}
+
+	/**
+	 * @throws IllegalStateException if the stream has already been read
+	 */
+	public synchronized Iterator<String> iterator() {
+		if (iterated) {
+			throw new IllegalStateException(name + " can only be read once");
+		}
+		iterated = true;
+		return new LineIterator();
+	}
+
+	private class LineIterator implements Iterator<String> {
+		private BufferedReader reader = null;
+		private String next = null;
+		private boolean done = false;
+
+		@Override
+		public boolean hasNext() {
+			if (next == null && !done) {
+				try {
+					if (reader == null) {
+						stream = new CountingInputStream(opener.open());
+						if (closed) {
+							stream.close();
+						}
+						reader = new BufferedReader(new InputStreamReader(stream, "ISO-8859-1"));
+					}
+					next = reader.readLine();
+				} catch (IOException e) {
+					if (!closed) {
+						Base.logger.warning("Error reading " + name + ": " + e.getMessage());
+					}
+				}
+				if (next == null) {
+					done = true;
+					close();
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public String next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			String line = next;
+			next = null;
+			return line;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -33,6 +33,7 @@ public class Point5d {
 	// Getter/setter for by-index access
 	public double get(int idx) { return values[idx]; }
 	public void set(int idx, double v) { values[idx] = v; }
+	public void set(Point5d p) { System.arraycopy(p.values,0,values,0,DIMENSIONS); }
 	
 	// Getters/setters for by-name access
 	public double x() { return values[0]; }